@@ -3,19 +3,45 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class EnhancedClient {
     private static final String SERVER_IP = "localhost";
     private static final int SERVER_PORT = 22222;
     private static final String EXIT_COMMAND = "EXIT";
+    private static final String HEARTBEAT = "HEARTBEAT";
+    private static final String HEARTBEAT_ACK = "HEARTBEAT_ACK";
+    private static final String COMPRESSION_REQUEST = "COMPRESSION:";
+    private static final String COMPRESSION_OK = "COMPRESSION_OK:";
+    private static final String COMPRESSION_REFUSED = "COMPRESSION_REFUSED";
     private static AtomicBoolean clientRunning = new AtomicBoolean(true);
 
+    // Usage: java EnhancedClient [--compress]
+    //        java EnhancedClient --swarm ... (see BotSwarm)
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("--swarm")) {
+            BotSwarm.main(args);
+            return;
+        }
+        boolean compress = Arrays.asList(args).contains("--compress");
+
         Socket socket = null;
         DataOutputStream out = null;
         DataInputStream in = null;
+        final MultiClientServer.MessageCodec codec = new MultiClientServer.MessageCodec(new MultiClientServer.CompressionStats());
+        Thread responseHandler = null;
 
         try {
             System.out.println("Client starting...");
@@ -27,14 +53,35 @@ public class EnhancedClient {
             in = new DataInputStream(socket.getInputStream());
 
             final DataInputStream finalIn = in;
+            final DataOutputStream finalOut = out;
             final boolean[] isFirstMessage = { true };
 
-            Thread responseHandler = new Thread(() -> {
+            if (compress) {
+                System.out.println("\nServer response: \n" + in.readUTF());
+                isFirstMessage[0] = false;
+                if (negotiateCompression(in, out, codec)) {
+                    System.out.println("Deflate compression enabled for messages of "
+                            + MultiClientServer.MessageCodec.COMPRESSION_THRESHOLD + " bytes or more.");
+                } else {
+                    System.out.println("Server does not support compression; continuing uncompressed.");
+                }
+            }
+
+            responseHandler = new Thread(() -> {
                 try {
                     while (clientRunning.get()) {
                         try {
 
-                            String response = finalIn.readUTF();
+                            String response = codec.read(finalIn);
+
+                            // Answer server heartbeats without disturbing the prompt
+                            if (HEARTBEAT.equals(response)) {
+                                synchronized (finalOut) {
+                                    codec.write(finalOut, HEARTBEAT_ACK);
+                                }
+                                continue;
+                            }
+
                             System.out.println("\nServer response: \n" + response);
 
                             if ("SERVER_SHUTDOWN".equals(response)) {
@@ -85,7 +132,9 @@ public class EnhancedClient {
 
                 if (message.equalsIgnoreCase(EXIT_COMMAND)) {
                     try {
-                        out.writeUTF(EXIT_COMMAND);
+                        synchronized (out) {
+                            codec.write(out, EXIT_COMMAND);
+                        }
                     } catch (IOException e) {
 
                         System.out.println("Could not send exit command, connection already closed.");
@@ -96,7 +145,9 @@ public class EnhancedClient {
 
                 if (!message.trim().isEmpty()) {
                     try {
-                        out.writeUTF(message);
+                        synchronized (out) {
+                            codec.write(out, message);
+                        }
                     } catch (IOException e) {
                         System.out.println("Error sending message: " + e.getMessage());
                         System.out.println("Server may have shut down. Exiting.");
@@ -122,7 +173,284 @@ public class EnhancedClient {
             } catch (IOException e) {
                 System.out.println("Error closing resources: " + e.getMessage());
             }
+
+            // The closed socket ends the response thread's read; wait for it before
+            // releasing the zlib state it may still be using
+            if (responseHandler != null) {
+                try {
+                    responseHandler.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            codec.close();
             System.out.println("Client terminated.");
         }
     }
-}
\ No newline at end of file
+
+    // Asks the server for deflate right after the welcome message. The server switches
+    // framing as soon as it has replied, so neither side sends anything in between.
+    // Broadcasts or heartbeats that arrive before the reply are skipped.
+    static boolean negotiateCompression(DataInputStream in, DataOutputStream out, MultiClientServer.MessageCodec codec) throws IOException {
+        synchronized (out) {
+            out.writeUTF(COMPRESSION_REQUEST + "deflate");
+        }
+        while (true) {
+            String response = in.readUTF();
+            if (response.startsWith(COMPRESSION_OK)) {
+                codec.enableDeflate();
+                return true;
+            }
+            if (response.equals(COMPRESSION_REFUSED) || response.contains("] Processed: ")) {
+                // Refused, or a server that treated the request as a chat message
+                return false;
+            }
+        }
+    }
+
+    // Headless load generator: java EnhancedClient --swarm <bots> <msgs/sec per bot> <seconds> [host] [port[,port...]]
+    // With several ports (one per cluster node) the bots are spread round-robin across them,
+    // --broadcast makes every bot message a cluster-wide BROADCAST, and --compress makes
+    // every bot negotiate deflate compression.
+    // Every bot is a closed-loop chat client that sends on a fixed schedule and waits for
+    // the processed reply. Latency is measured from the scheduled send time, so a slow
+    // server is not hidden by bots that fall behind their schedule.
+    static class BotSwarm {
+        private final int botCount;
+        private final double messagesPerSecond;
+        private final int durationSeconds;
+        private static final int BOT_READ_TIMEOUT_MS = 15_000;
+
+        private final String host;
+        private final int[] ports;
+        private final boolean broadcast;
+        private final boolean compress;
+        private final MultiClientServer.CompressionStats compression = new MultiClientServer.CompressionStats();
+
+        private final AtomicInteger connected = new AtomicInteger();
+        private final LongAdder connectFailures = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder received = new LongAdder();
+        private final MultiClientServer.LatencyHistogram latency = new MultiClientServer.LatencyHistogram();
+
+        BotSwarm(int botCount, double messagesPerSecond, int durationSeconds, String host, int[] ports, boolean broadcast, boolean compress) {
+            this.botCount = botCount;
+            this.messagesPerSecond = messagesPerSecond;
+            this.durationSeconds = durationSeconds;
+            this.host = host;
+            this.ports = ports;
+            this.broadcast = broadcast;
+            this.compress = compress;
+        }
+
+        static void main(String[] args) {
+            List<String> argList = new ArrayList<>(Arrays.asList(args));
+            boolean broadcast = argList.remove("--broadcast");
+            boolean compress = argList.remove("--compress");
+            args = argList.toArray(new String[0]);
+
+            if (args.length < 4) {
+                System.out.println("Usage: java EnhancedClient --swarm <bots> <messages/sec per bot> <duration seconds> [host] [port[,port...]] [--broadcast] [--compress]");
+                return;
+            }
+            try {
+                int bots = Integer.parseInt(args[1]);
+                double rate = Double.parseDouble(args[2]);
+                int duration = Integer.parseInt(args[3]);
+                String host = args.length > 4 ? args[4] : SERVER_IP;
+                String[] portList = args.length > 5 ? args[5].split(",") : new String[] { String.valueOf(SERVER_PORT) };
+                int[] ports = new int[portList.length];
+                for (int i = 0; i < portList.length; i++) {
+                    ports[i] = Integer.parseInt(portList[i].trim());
+                }
+                if (bots < 1 || rate <= 0 || duration < 1) {
+                    System.out.println("Bots, rate and duration must be positive.");
+                    return;
+                }
+                new BotSwarm(bots, rate, duration, host, ports, broadcast, compress).run();
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid number: " + e.getMessage());
+            }
+        }
+
+        void run() {
+            System.out.println("Starting " + botCount + " bots against " + host + ":" + Arrays.toString(ports) + ", "
+                    + messagesPerSecond + " msg/s each for " + durationSeconds + " s");
+
+            ExecutorService executor = newBotExecutor();
+            CountDownLatch finished = new CountDownLatch(botCount);
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+            for (int i = 0; i < botCount; i++) {
+                final int botId = i + 1;
+                executor.execute(() -> {
+                    try {
+                        runBot(botId, end);
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+
+            try {
+                long lastReceived = 0;
+                while (!finished.await(1, TimeUnit.SECONDS)) {
+                    long total = received.sum();
+                    System.out.println(String.format("[%3ds] connected=%d sent=%d received=%d (%d/s)",
+                            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                            connected.get(), sent.sum(), total, total - lastReceived));
+                    lastReceived = total;
+                    if (System.nanoTime() - end > TimeUnit.SECONDS.toNanos(30)) {
+                        System.out.println("Some bots did not finish within 30 s of the deadline.");
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor.shutdownNow();
+
+            printReport((System.nanoTime() - start) / 1e9);
+        }
+
+        private void runBot(int botId, long endNanos) {
+            Socket socket = connectWithRetry(ports[botId % ports.length]);
+            if (socket == null) {
+                connectFailures.increment();
+                return;
+            }
+            connected.incrementAndGet();
+            MultiClientServer.MessageCodec codec = new MultiClientServer.MessageCodec(compression);
+
+            try (Socket s = socket;
+                 DataInputStream in = new DataInputStream(s.getInputStream());
+                 DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(BOT_READ_TIMEOUT_MS);
+                in.readUTF(); // welcome message
+                if (compress && !negotiateCompression(in, out, codec)) {
+                    errors.increment();
+                    return;
+                }
+
+                long interval = (long) (1e9 / messagesPerSecond);
+                // Spread the bots over the first interval so they don't fire in lockstep
+                long scheduled = System.nanoTime() + ThreadLocalRandom.current().nextLong(Math.max(interval, 1));
+                int sequence = 0;
+
+                while (scheduled < endNanos) {
+                    long wait = scheduled - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+
+                    String text = "Bot " + botId + " says hello. This is message " + sequence++ + "!";
+                    codec.write(out, broadcast ? "BROADCAST:" + text : text);
+                    sent.increment();
+
+                    if (!awaitReply(in, out, codec)) {
+                        return;
+                    }
+                    latency.record((System.nanoTime() - scheduled) / 1000);
+                    received.increment();
+                    scheduled += interval;
+                }
+
+                codec.write(out, EXIT_COMMAND);
+            } catch (IOException e) {
+                errors.increment();
+            } finally {
+                codec.close();
+                connected.decrementAndGet();
+            }
+        }
+
+        // Reads until the reply to our own message arrives; false if the server went away
+        private boolean awaitReply(DataInputStream in, DataOutputStream out, MultiClientServer.MessageCodec codec) throws IOException {
+            while (true) {
+                String response = codec.read(in);
+                if (HEARTBEAT.equals(response)) {
+                    codec.write(out, HEARTBEAT_ACK);
+                } else if ("SERVER_SHUTDOWN".equals(response)) {
+                    return false;
+                } else if (!response.startsWith("[SERVER MESSAGE]") && !response.startsWith("[BROADCAST")) {
+                    return true;
+                }
+            }
+        }
+
+        private Socket connectWithRetry(int port) {
+            for (int attempt = 0; attempt < 5; attempt++) {
+                try {
+                    return new Socket(host, port);
+                } catch (IOException e) {
+                    // The accept backlog overflows when thousands of bots connect at once
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100L << attempt));
+                }
+            }
+            return null;
+        }
+
+        // Virtual threads when the runtime has them (Java 21+), otherwise small-stack platform threads
+        private static ExecutorService newBotExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(null, r, "swarm-bot", 256 * 1024);
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        private void printReport(double elapsedSeconds) {
+            long[] counts = latency.snapshotCounts();
+            long samples = 0;
+            for (long c : counts) samples += c;
+            long max = latency.max();
+
+            System.out.println("\n=== Swarm Results ===");
+            System.out.println("Bots: " + botCount + " (" + connectFailures.sum() + " failed to connect, "
+                    + errors.sum() + " dropped with errors)");
+            System.out.println(String.format("Messages: %d sent, %d replies in %.1f s", sent.sum(), received.sum(), elapsedSeconds));
+            System.out.println(String.format("Throughput: %.1f replies/s", received.sum() / elapsedSeconds));
+            if (compress) {
+                System.out.println(compression.report());
+            }
+            if (samples == 0) {
+                System.out.println("No latency samples recorded.");
+                return;
+            }
+            System.out.println(String.format("Latency (us): p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                    Math.min(MultiClientServer.LatencyHistogram.percentile(counts, samples, 0.50), max),
+                    Math.min(MultiClientServer.LatencyHistogram.percentile(counts, samples, 0.90), max),
+                    Math.min(MultiClientServer.LatencyHistogram.percentile(counts, samples, 0.99), max),
+                    Math.min(MultiClientServer.LatencyHistogram.percentile(counts, samples, 0.999), max),
+                    max));
+
+            long[] limits = { 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000,
+                    250_000, 500_000, 1_000_000, Long.MAX_VALUE };
+            String[] labels = { "<100us", "<250us", "<500us", "<1ms", "<2.5ms", "<5ms", "<10ms", "<25ms",
+                    "<50ms", "<100ms", "<250ms", "<500ms", "<1s", ">=1s" };
+            long[] grouped = new long[limits.length];
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) continue;
+                long upper = MultiClientServer.LatencyHistogram.bucketUpperBound(i);
+                int g = 0;
+                while (upper >= limits[g]) g++;
+                grouped[g] += counts[i];
+            }
+
+            System.out.println("Latency histogram:");
+            for (int g = 0; g < limits.length; g++) {
+                if (grouped[g] == 0) continue;
+                int bar = (int) Math.round(grouped[g] * 50.0 / samples);
+                System.out.println(String.format("  %-7s %8d %5.1f%% %s", labels[g], grouped[g],
+                        grouped[g] * 100.0 / samples, "#".repeat(Math.max(bar, 1))));
+            }
+        }
+    }
+}
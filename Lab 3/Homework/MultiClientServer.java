@@ -1,31 +1,95 @@
 import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
  
 public class MultiClientServer {
     private static final int PORT = 22222;
     private static final String TERMINATION_COMMAND = "EXIT_SERVER";
     private static final String EXIT_COMMAND = "EXIT";
     private static final String SEND_COMMAND = "SEND";
+    private static final String STATS_COMMAND = "STATS";
+    private static final String STATS_JSON_COMMAND = "STATS_JSON";
+    private static final String BROADCAST_PREFIX = "BROADCAST:";
+    private static final String COMPRESSION_REQUEST = "COMPRESSION:";
+    private static final String COMPRESSION_OK = "COMPRESSION_OK:";
+    private static final String COMPRESSION_REFUSED = "COMPRESSION_REFUSED";
+    private static final String HEARTBEAT = "HEARTBEAT";
+    private static final String HEARTBEAT_ACK = "HEARTBEAT_ACK";
+    // A client silent for IDLE_TIMEOUT_MS gets a heartbeat; if it stays silent
+    // for another HEARTBEAT_GRACE_MS the connection is reaped.
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    private static final long HEARTBEAT_GRACE_MS = 10_000;
+    // The default backlog of 50 drops handshakes when many clients connect at once
+    private static final int ACCEPT_BACKLOG = 1024;
     private static boolean serverRunning = true;
-    private static List<ClientHandler> clients = new ArrayList<>();
+    private static List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private static int port = PORT;
+    private static Cluster cluster;
+    private static final ServerStats stats = new ServerStats();
+    private static final TimingWheel idleTimers = new TimingWheel(100, 512);
+    // Heartbeat writes can block on a client that stopped reading, so they run here
+    // rather than on the timing wheel's task threads
+    private static final ExecutorService heartbeatSender = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "heartbeat-sender");
+        t.setDaemon(true);
+        return t;
+    });
     private static ServerSocket serverSocket;
  
+    // Usage: java MultiClientServer [port] [relayPort peerHost:peerRelayPort ...]
+    // Without a relay port the server runs as a single node. With one, it joins a
+    // full mesh: every node must list every other node as a peer (listing itself is
+    // ignored, so all nodes can be started with the same peer list).
     public static void main(String[] args) {
         try {
+            if (args.length > 0) {
+                port = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                List<String> peers = new ArrayList<>();
+                for (int i = 2; i < args.length; i++) {
+                    peers.add(args[i]);
+                }
+                cluster = new Cluster("node-" + port, Integer.parseInt(args[1]), peers);
+                cluster.start();
+            }
  
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("Server Started on port " + PORT);
+            serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+            System.out.println("Server Started on port " + port);
             System.out.println("Type '" + TERMINATION_COMMAND + "' or '" + EXIT_COMMAND + "' to shut down the server");
             System.out.println("Type '" + SEND_COMMAND + "' to send a message to clients");
+            System.out.println("Type '" + STATS_COMMAND + "' (or '" + STATS_JSON_COMMAND + "') to show server statistics");
  
  
             startServerMonitor();
+            idleTimers.start();
  
  
             while (serverRunning) {
@@ -34,6 +98,7 @@ public class MultiClientServer {
                     Socket clientSocket = serverSocket.accept();
                     System.out.println("New client connected: " + clientSocket.getPort());
                     System.out.println("Current client count: " + (clients.size() + 1));
+                    stats.connectionsAccepted.increment();
  
  
                     ClientHandler clientHandler = new ClientHandler(clientSocket);
@@ -82,6 +147,10 @@ public class MultiClientServer {
                     break;
                 } else if (command.equalsIgnoreCase(SEND_COMMAND)) {
                     handleSendCommand(scanner);
+                } else if (command.equalsIgnoreCase(STATS_COMMAND)) {
+                    System.out.println(stats.report(clients));
+                } else if (command.equalsIgnoreCase(STATS_JSON_COMMAND)) {
+                    System.out.println(stats.toJson(clients));
                 }
             }
             scanner.close();
@@ -176,8 +245,22 @@ public class MultiClientServer {
     }
  
  
+    // Sends a message to every local client except the sender; returns how many got it
+    static int deliverLocally(String message, ClientHandler sender) {
+        int delivered = 0;
+        for (ClientHandler client : clients) {
+            if (client != sender && client.sendMessage(message)) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+ 
+ 
     public static void removeClient(ClientHandler client) {
-        clients.remove(client);
+        if (clients.remove(client)) {
+            stats.connectionsClosed.increment();
+        }
         System.out.println("Client disconnected. Current client count: " + clients.size());
     }
  
@@ -186,8 +269,12 @@ public class MultiClientServer {
         private Socket socket;
         private DataOutputStream out;
         private DataInputStream in;
-        private boolean isRunning = true;
+        private volatile boolean isRunning = true;
         private String clientAddress;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile boolean heartbeatPending = false;
+        private volatile TimingWheel.Timeout idleTimeout;
+        private final MessageCodec codec = new MessageCodec(stats.compression);
  
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -195,8 +282,8 @@ public class MultiClientServer {
  
  
             try {
-                this.out = new DataOutputStream(socket.getOutputStream());
-                this.in = new DataInputStream(socket.getInputStream());
+                this.out = new DataOutputStream(new CountingOutputStream(socket.getOutputStream(), stats.bytesOut));
+                this.in = new DataInputStream(new CountingInputStream(socket.getInputStream(), stats.bytesIn));
             } catch (IOException e) {
                 System.out.println("Error setting up streams for client: " + e.getMessage());
                 isRunning = false;
@@ -207,17 +294,32 @@ public class MultiClientServer {
         public void run() {
             try {
  
-                out.writeUTF("Welcome to the chat server! Type 'EXIT' to disconnect.");
+                writeMessage("Welcome to the chat server! Type 'EXIT' to disconnect, or 'BROADCAST:<message>' to message everyone.");
+                stats.messagesOut.increment();
+                idleTimeout = idleTimers.schedule(IDLE_TIMEOUT_MS, this::checkIdle);
  
  
                 while (isRunning && serverRunning) {
                     try {
  
-                        String message = in.readUTF();
+                        String message = codec.read(in);
+                        long receivedAt = System.nanoTime();
+                        lastActivity = System.currentTimeMillis();
+                        heartbeatPending = false;
+ 
+ 
+                        if (message.equals(HEARTBEAT_ACK)) {
+                            continue;
+                        }
+                        if (message.startsWith(COMPRESSION_REQUEST)) {
+                            negotiateCompression(message.substring(COMPRESSION_REQUEST.length()).trim());
+                            continue;
+                        }
+                        stats.messagesIn.increment();
  
  
                         if (message.equalsIgnoreCase("EXIT")) {
-                            out.writeUTF("Goodbye! Disconnecting your session.");
+                            writeMessage("Goodbye! Disconnecting your session.");
                             break;
                         }
  
@@ -225,10 +327,17 @@ public class MultiClientServer {
                         System.out.println("From client " + clientAddress + ": " + message);
  
  
-                        String response = processMessage(message);
+                        String response;
+                        if (message.regionMatches(true, 0, BROADCAST_PREFIX, 0, BROADCAST_PREFIX.length())) {
+                            response = handleBroadcast(message.substring(BROADCAST_PREFIX.length()).trim());
+                        } else {
+                            response = processMessage(message);
+                        }
  
  
-                        out.writeUTF(response);
+                        writeMessage(response);
+                        stats.messagesOut.increment();
+                        stats.processingLatency.record((System.nanoTime() - receivedAt) / 1000);
                     } catch (IOException e) {
                         if (serverRunning && isRunning) {
                             System.out.println("Error reading from client: " + e.getMessage());
@@ -240,6 +349,10 @@ public class MultiClientServer {
                 System.out.println("Error in client handler: " + e.getMessage());
             } finally {
                 closeConnection(null);
+                // Only this thread reads, and writers hold the stream lock, so the codec is idle here
+                synchronized (out) {
+                    codec.close();
+                }
                 removeClient(this);
             }
         }
@@ -267,13 +380,26 @@ public class MultiClientServer {
         }
  
  
+        private String handleBroadcast(String text) {
+            if (text.isEmpty()) {
+                return "Broadcast message cannot be empty.";
+            }
+ 
+            String nodeId = cluster != null ? cluster.nodeId : "node-" + port;
+            int delivered = deliverLocally("[BROADCAST from " + clientAddress + "@" + nodeId + "] " + text, this);
+            int relayed = cluster != null ? cluster.relay(clientAddress, text) : 0;
+            return "Broadcast delivered to " + delivered + " local clients and relayed to " + relayed + " nodes.";
+        }
+ 
+ 
         public boolean sendMessage(String message) {
             if (!isRunning || out == null) {
                 return false;
             }
  
             try {
-                out.writeUTF(message);
+                writeMessage(message);
+                stats.messagesOut.increment();
                 return true;
             } catch (IOException e) {
                 System.out.println("Error sending message to client " + clientAddress + ": " + e.getMessage());
@@ -282,20 +408,857 @@ public class MultiClientServer {
         }
  
  
+        // Handler, monitor and timer threads all write to the same stream
+        private void writeMessage(String message) throws IOException {
+            synchronized (out) {
+                codec.write(out, message);
+            }
+        }
+ 
+ 
+        // The reply goes out uncompressed; from then on both directions use the
+        // deflate framing, since the client only switches after reading the reply.
+        private void negotiateCompression(String mode) throws IOException {
+            if (!mode.equalsIgnoreCase("deflate")) {
+                writeMessage(COMPRESSION_REFUSED);
+                return;
+            }
+            synchronized (out) {
+                out.writeUTF(COMPRESSION_OK + "deflate");
+                codec.enableDeflate();
+            }
+            stats.compression.connections.increment();
+            System.out.println("Client " + clientAddress + " enabled deflate compression");
+        }
+ 
+ 
+        // Runs on the timing wheel whenever this connection's idle deadline is reached.
+        // Activity only updates lastActivity, so the timer is re-armed lazily here
+        // instead of being rescheduled on every message.
+        private void checkIdle() {
+            if (!isRunning) {
+                return;
+            }
+ 
+            long idle = System.currentTimeMillis() - lastActivity;
+            if (idle < IDLE_TIMEOUT_MS) {
+                idleTimeout = idleTimers.schedule(IDLE_TIMEOUT_MS - idle, this::checkIdle);
+            } else if (idle < IDLE_TIMEOUT_MS + HEARTBEAT_GRACE_MS) {
+                if (!heartbeatPending) {
+                    heartbeatPending = true;
+                    // If this write blocks, the reap below closes the socket at the end of
+                    // the grace period, which unblocks it
+                    heartbeatSender.execute(this::sendHeartbeat);
+                }
+                idleTimeout = idleTimers.schedule(IDLE_TIMEOUT_MS + HEARTBEAT_GRACE_MS - idle, this::checkIdle);
+            } else {
+                System.out.println("Client " + clientAddress + " idle for " + (idle / 1000) + "s without answering heartbeat. Closing connection.");
+                stats.connectionsReaped.increment();
+                // Closing the socket unblocks readUTF, so the handler thread removes the client itself
+                closeConnection(null);
+            }
+        }
+ 
+ 
+        private void sendHeartbeat() {
+            try {
+                writeMessage(HEARTBEAT);
+                stats.heartbeatsSent.increment();
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.out.println("Heartbeat to client " + clientAddress + " failed: " + e.getMessage());
+                    closeConnection(null);
+                }
+            }
+        }
+ 
+ 
         public void closeConnection(String finalMessage) {
             isRunning = false;
  
+            TimingWheel.Timeout timeout = idleTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+ 
             try {
                 if (finalMessage != null && out != null) {
-                    out.writeUTF(finalMessage);
+                    writeMessage(finalMessage);
                 }
  
+                // Close the socket before the streams: a heartbeat stuck in a write holds
+                // the stream's lock, and only the socket closing will release it
+                if (socket != null && !socket.isClosed()) socket.close();
                 if (in != null) in.close();
                 if (out != null) out.close();
-                if (socket != null && !socket.isClosed()) socket.close();
             } catch (IOException e) {
                 System.out.println("Error closing client connection: " + e.getMessage());
             }
         }
+ 
+ 
+        // Bytes received from this client that have not been read by the handler yet
+        int pendingInboundBytes() {
+            try {
+                return isRunning ? in.available() : 0;
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+    }
+ 
+ 
+    // Server-wide counters. LongAdder stripes updates across cells, so handler
+    // threads recording a message never contend on a single shared field.
+    static class ServerStats {
+        final LongAdder connectionsAccepted = new LongAdder();
+        final LongAdder connectionsClosed = new LongAdder();
+        final LongAdder messagesIn = new LongAdder();
+        final LongAdder messagesOut = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder heartbeatsSent = new LongAdder();
+        final LongAdder connectionsReaped = new LongAdder();
+        final LatencyHistogram processingLatency = new LatencyHistogram();
+        final LongAdder relayMessagesOut = new LongAdder();
+        final LongAdder relayBatchesOut = new LongAdder();
+        final LongAdder relayMessagesIn = new LongAdder();
+        final LongAdder relayDropped = new LongAdder();
+        final CompressionStats compression = new CompressionStats();
+ 
+        private final long startTime = System.nanoTime();
+        // Previous snapshot, only touched by the monitor thread to compute per-second rates
+        private long lastSnapshotTime = startTime;
+        private long lastMessagesIn = 0;
+        private long lastMessagesOut = 0;
+        private long lastBytesIn = 0;
+        private long lastBytesOut = 0;
+ 
+        private synchronized Snapshot snapshot(List<ClientHandler> clients) {
+            Snapshot s = new Snapshot();
+            long now = System.nanoTime();
+            s.uptimeSeconds = (now - startTime) / 1e9;
+            double interval = Math.max((now - lastSnapshotTime) / 1e9, 1e-3);
+ 
+            s.activeConnections = clients.size();
+            s.accepted = connectionsAccepted.sum();
+            s.closed = connectionsClosed.sum();
+            s.reaped = connectionsReaped.sum();
+            s.heartbeatsSent = heartbeatsSent.sum();
+            s.idleTimers = idleTimers.pendingTimers();
+            s.relayMessagesOut = relayMessagesOut.sum();
+            s.relayBatchesOut = relayBatchesOut.sum();
+            s.relayMessagesIn = relayMessagesIn.sum();
+            s.relayDropped = relayDropped.sum();
+            if (cluster != null) {
+                s.relayLinksUp = cluster.linksUp();
+                s.relayLinks = cluster.links.size();
+                s.relayQueueDepth = cluster.queuedMessages();
+            }
+            s.messagesIn = messagesIn.sum();
+            s.messagesOut = messagesOut.sum();
+            s.bytesIn = bytesIn.sum();
+            s.bytesOut = bytesOut.sum();
+ 
+            s.messagesInPerSec = (s.messagesIn - lastMessagesIn) / interval;
+            s.messagesOutPerSec = (s.messagesOut - lastMessagesOut) / interval;
+            s.bytesInPerSec = (s.bytesIn - lastBytesIn) / interval;
+            s.bytesOutPerSec = (s.bytesOut - lastBytesOut) / interval;
+ 
+            for (ClientHandler client : clients) {
+                int pending = client.pendingInboundBytes();
+                s.inboundBacklogBytes += pending;
+                s.maxInboundBacklogBytes = Math.max(s.maxInboundBacklogBytes, pending);
+            }
+ 
+            long[] counts = processingLatency.snapshotCounts();
+            s.latencySamples = 0;
+            for (long c : counts) s.latencySamples += c;
+            s.max = processingLatency.max();
+            // Bucket upper bounds can overshoot the largest recorded value
+            s.p50 = Math.min(LatencyHistogram.percentile(counts, s.latencySamples, 0.50), s.max);
+            s.p90 = Math.min(LatencyHistogram.percentile(counts, s.latencySamples, 0.90), s.max);
+            s.p99 = Math.min(LatencyHistogram.percentile(counts, s.latencySamples, 0.99), s.max);
+            s.p999 = Math.min(LatencyHistogram.percentile(counts, s.latencySamples, 0.999), s.max);
+ 
+            lastSnapshotTime = now;
+            lastMessagesIn = s.messagesIn;
+            lastMessagesOut = s.messagesOut;
+            lastBytesIn = s.bytesIn;
+            lastBytesOut = s.bytesOut;
+            return s;
+        }
+ 
+        String report(List<ClientHandler> clients) {
+            Snapshot s = snapshot(clients);
+            StringBuilder sb = new StringBuilder();
+            sb.append("\n=== Server Statistics ===\n");
+            sb.append(String.format("Uptime: %.1f s%n", s.uptimeSeconds));
+            sb.append(String.format("Connections: %d active, %d accepted, %d closed (%d reaped as idle)%n",
+                    s.activeConnections, s.accepted, s.closed, s.reaped));
+            sb.append(String.format("Heartbeats sent: %d, idle timers pending: %d%n",
+                    s.heartbeatsSent, s.idleTimers));
+            sb.append(String.format("Messages in: %d (%.1f/s), out: %d (%.1f/s)%n",
+                    s.messagesIn, s.messagesInPerSec, s.messagesOut, s.messagesOutPerSec));
+            sb.append(String.format("Bytes in: %d (%.1f/s), out: %d (%.1f/s)%n",
+                    s.bytesIn, s.bytesInPerSec, s.bytesOut, s.bytesOutPerSec));
+            sb.append(String.format("Inbound queue: %d bytes pending (max %d on one client)%n",
+                    s.inboundBacklogBytes, s.maxInboundBacklogBytes));
+            sb.append(compression.report()).append(String.format("%n"));
+            if (cluster != null) {
+                sb.append(String.format("Relay (%s): %d/%d links up, %d queued, out %d msgs in %d batches (avg %.1f), in %d, dropped %d%n",
+                        cluster.nodeId, s.relayLinksUp, s.relayLinks, s.relayQueueDepth, s.relayMessagesOut,
+                        s.relayBatchesOut, s.relayBatchesOut == 0 ? 0.0 : (double) s.relayMessagesOut / s.relayBatchesOut,
+                        s.relayMessagesIn, s.relayDropped));
+            }
+            sb.append(String.format("Processing latency (us, %d samples): p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                    s.latencySamples, s.p50, s.p90, s.p99, s.p999, s.max));
+            return sb.toString();
+        }
+ 
+        String toJson(List<ClientHandler> clients) {
+            Snapshot s = snapshot(clients);
+            return String.format(java.util.Locale.ROOT,
+                    "{\"uptimeSeconds\":%.3f,\"connections\":{\"active\":%d,\"accepted\":%d,\"closed\":%d,\"reaped\":%d},"
+                    + "\"heartbeats\":{\"sent\":%d,\"pendingTimers\":%d},"
+                    + "\"messages\":{\"in\":%d,\"out\":%d,\"inPerSec\":%.3f,\"outPerSec\":%.3f},"
+                    + "\"bytes\":{\"in\":%d,\"out\":%d,\"inPerSec\":%.3f,\"outPerSec\":%.3f},"
+                    + "\"queues\":{\"inboundPendingBytes\":%d,\"maxInboundPendingBytes\":%d,\"relayQueued\":%d},"
+                    + "\"relay\":{\"linksUp\":%d,\"links\":%d,\"messagesOut\":%d,\"batchesOut\":%d,\"messagesIn\":%d,\"dropped\":%d},"
+                    + "\"compression\":" + compression.toJson() + ","
+                    + "\"latencyMicros\":{\"count\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d}}",
+                    s.uptimeSeconds, s.activeConnections, s.accepted, s.closed, s.reaped,
+                    s.heartbeatsSent, s.idleTimers,
+                    s.messagesIn, s.messagesOut, s.messagesInPerSec, s.messagesOutPerSec,
+                    s.bytesIn, s.bytesOut, s.bytesInPerSec, s.bytesOutPerSec,
+                    s.inboundBacklogBytes, s.maxInboundBacklogBytes, s.relayQueueDepth,
+                    s.relayLinksUp, s.relayLinks, s.relayMessagesOut, s.relayBatchesOut, s.relayMessagesIn, s.relayDropped,
+                    s.latencySamples, s.p50, s.p90, s.p99, s.p999, s.max);
+        }
+ 
+        static class Snapshot {
+            double uptimeSeconds;
+            int activeConnections;
+            long accepted, closed, reaped, heartbeatsSent;
+            int idleTimers;
+            long relayMessagesOut, relayBatchesOut, relayMessagesIn, relayDropped;
+            int relayLinksUp, relayLinks, relayQueueDepth;
+            long messagesIn, messagesOut, bytesIn, bytesOut;
+            double messagesInPerSec, messagesOutPerSec, bytesInPerSec, bytesOutPerSec;
+            long inboundBacklogBytes, maxInboundBacklogBytes;
+            long latencySamples, p50, p90, p99, p999, max;
+        }
+    }
+ 
+ 
+    // Log-linear histogram: values below 8 get their own bucket, above that each
+    // power of two is split into 8 sub-buckets (~12% relative error). Every bucket
+    // is a LongAdder so concurrent record() calls stay lock-free and uncontended.
+    static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+ 
+        private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+ 
+        LatencyHistogram() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+ 
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets[bucketIndex(value)].increment();
+            max.accumulate(value);
+        }
+ 
+        long max() {
+            return max.get();
+        }
+ 
+        long[] snapshotCounts() {
+            long[] counts = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+ 
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKET_COUNT - 1;
+            }
+            int sub = (int) ((value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+            return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+        }
+ 
+        // Upper bound of the values that fall into the given bucket
+        static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+            int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (1L << exponent) + (sub + 1) * width - 1;
+        }
+ 
+        static long percentile(long[] counts, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * quantile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return bucketUpperBound(counts.length - 1);
+        }
+    }
+ 
+ 
+    // Wire format for one connection. Until deflate is negotiated every message is a
+    // plain writeUTF. Afterwards each message starts with a type byte: short messages
+    // stay plain, longer ones are deflated with a per-connection Deflater/Inflater that
+    // keeps its dictionary between messages (sync-flushed, like permessage-deflate), so
+    // repeated chat phrases compress well. Writes must be serialised by the caller;
+    // reads come from a single thread and share no state with the write path.
+    static class MessageCodec {
+        static final int COMPRESSION_THRESHOLD = 256;
+        private static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+        private static final int PLAIN = 0;
+        private static final int DEFLATED = 1;
+ 
+        private final CompressionStats stats;
+        private volatile boolean deflate = false;
+        private Deflater deflater;
+        private Inflater inflater;
+        private final byte[] deflateBuffer = new byte[8192];
+        private final byte[] inflateBuffer = new byte[8192];
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        private final DataOutputStream frameOut = new DataOutputStream(frame);
+ 
+        MessageCodec(CompressionStats stats) {
+            this.stats = stats;
+        }
+ 
+        void enableDeflate() {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            inflater = new Inflater(true);
+            deflate = true;
+        }
+ 
+        boolean isDeflateEnabled() {
+            return deflate;
+        }
+ 
+        void write(DataOutputStream out, String message) throws IOException {
+            if (!deflate) {
+                out.writeUTF(message);
+                return;
+            }
+ 
+            // Build the whole frame first so it reaches the socket in a single write
+            frame.reset();
+            byte[] raw = message.getBytes(StandardCharsets.UTF_8);
+            if (raw.length < COMPRESSION_THRESHOLD) {
+                frameOut.writeByte(PLAIN);
+                frameOut.writeUTF(message);
+                stats.belowThreshold.increment();
+            } else {
+                long start = System.nanoTime();
+                compressed.reset();
+                deflater.setInput(raw);
+                int n;
+                do {
+                    n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(deflateBuffer, 0, n);
+                } while (n == deflateBuffer.length);
+                stats.deflateNanos.add(System.nanoTime() - start);
+                stats.messagesDeflated.increment();
+                stats.rawBytesOut.add(raw.length);
+                stats.compressedBytesOut.add(compressed.size());
+ 
+                frameOut.writeByte(DEFLATED);
+                frameOut.writeInt(raw.length);
+                frameOut.writeInt(compressed.size());
+                compressed.writeTo(frameOut);
+            }
+            frame.writeTo(out);
+        }
+ 
+        String read(DataInputStream in) throws IOException {
+            if (!deflate) {
+                return in.readUTF();
+            }
+ 
+            int type = in.readUnsignedByte();
+            if (type == PLAIN) {
+                return in.readUTF();
+            }
+            if (type != DEFLATED) {
+                throw new IOException("Unknown message type " + type);
+            }
+ 
+            int rawLength = in.readInt();
+            int compressedLength = in.readInt();
+            if (rawLength < 0 || rawLength > MAX_MESSAGE_BYTES || compressedLength < 0 || compressedLength > MAX_MESSAGE_BYTES) {
+                throw new IOException("Compressed message too large");
+            }
+            byte[] input = new byte[compressedLength];
+            in.readFully(input);
+ 
+            long start = System.nanoTime();
+            byte[] raw = new byte[rawLength];
+            try {
+                inflater.setInput(input);
+                int offset = 0;
+                while (offset < rawLength) {
+                    int n = inflater.inflate(raw, offset, rawLength - offset);
+                    if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+                        throw new IOException("Truncated compressed message");
+                    }
+                    offset += n;
+                }
+                // Consume the empty block that ends a sync flush so the next setInput starts clean
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    if (inflater.inflate(inflateBuffer) > 0) {
+                        throw new IOException("Compressed message longer than announced");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed message", e);
+            }
+            stats.inflateNanos.add(System.nanoTime() - start);
+            stats.messagesInflated.increment();
+            stats.compressedBytesIn.add(compressedLength);
+            stats.rawBytesIn.add(rawLength);
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+ 
+        // Releases the native zlib state; the codec must not be used afterwards
+        void close() {
+            if (deflater != null) deflater.end();
+            if (inflater != null) inflater.end();
+            deflate = false;
+        }
+    }
+ 
+ 
+    static class CompressionStats {
+        final LongAdder connections = new LongAdder();
+        final LongAdder belowThreshold = new LongAdder();
+        final LongAdder messagesDeflated = new LongAdder();
+        final LongAdder rawBytesOut = new LongAdder();
+        final LongAdder compressedBytesOut = new LongAdder();
+        final LongAdder deflateNanos = new LongAdder();
+        final LongAdder messagesInflated = new LongAdder();
+        final LongAdder compressedBytesIn = new LongAdder();
+        final LongAdder rawBytesIn = new LongAdder();
+        final LongAdder inflateNanos = new LongAdder();
+ 
+        String report() {
+            long deflated = messagesDeflated.sum();
+            long inflated = messagesInflated.sum();
+            long raw = rawBytesOut.sum();
+            long wire = compressedBytesOut.sum();
+            return String.format("Compression: %d connections negotiated, %d small messages sent plain%n"
+                    + "  deflated out: %d msgs, %d B -> %d B (%.1f%% saved), %.1f us/msg CPU%n"
+                    + "  inflated in: %d msgs, %d B -> %d B, %.1f us/msg CPU",
+                    connections.sum(), belowThreshold.sum(),
+                    deflated, raw, wire, raw == 0 ? 0.0 : 100.0 * (raw - wire) / raw,
+                    deflated == 0 ? 0.0 : deflateNanos.sum() / 1000.0 / deflated,
+                    inflated, compressedBytesIn.sum(), rawBytesIn.sum(),
+                    inflated == 0 ? 0.0 : inflateNanos.sum() / 1000.0 / inflated);
+        }
+ 
+        String toJson() {
+            return String.format(java.util.Locale.ROOT,
+                    "{\"connections\":%d,\"belowThreshold\":%d,\"deflatedMessages\":%d,\"rawBytesOut\":%d,"
+                    + "\"compressedBytesOut\":%d,\"deflateMicros\":%d,\"inflatedMessages\":%d,"
+                    + "\"compressedBytesIn\":%d,\"rawBytesIn\":%d,\"inflateMicros\":%d}",
+                    connections.sum(), belowThreshold.sum(), messagesDeflated.sum(), rawBytesOut.sum(),
+                    compressedBytesOut.sum(), deflateNanos.sum() / 1000, messagesInflated.sum(),
+                    compressedBytesIn.sum(), rawBytesIn.sum(), inflateNanos.sum() / 1000);
+        }
+    }
+ 
+ 
+    // Relay mesh between chat server instances. Each node keeps one outbound link per
+    // peer and accepts the peers' links on its relay port, so in a full mesh a
+    // broadcast crosses every link exactly once and receivers never forward it.
+    // Outbound links queue messages and a sender thread drains whatever has piled
+    // up into a single batch frame, so heavy traffic costs one write per batch.
+    static class Cluster {
+        private static final int MAX_BATCH = 256;
+        private static final int MAX_QUEUED = 10_000;
+        private static final long RECONNECT_DELAY_MS = 2_000;
+ 
+        final String nodeId;
+        private final int relayPort;
+        final List<RelayLink> links = new ArrayList<>();
+        // The node id is derived from the port and survives restarts, while message ids
+        // start again from 1, so every message also carries the start time of the process
+        // that sent it and peers track ids per (origin, incarnation).
+        private final long incarnation = System.currentTimeMillis();
+        private long nextMessageId = 0;
+        // Highest message id delivered per origin incarnation. Ids are assigned and queued
+        // under one lock and each link is FIFO, so anything at or below it is a batch
+        // resent after a reconnect.
+        private final ConcurrentHashMap<String, Long> lastDelivered = new ConcurrentHashMap<>();
+ 
+        Cluster(String nodeId, int relayPort, List<String> peers) {
+            this.nodeId = nodeId;
+            this.relayPort = relayPort;
+            for (String peer : peers) {
+                int colon = peer.lastIndexOf(':');
+                String host = peer.substring(0, colon);
+                int peerPort = Integer.parseInt(peer.substring(colon + 1));
+                if (peerPort == relayPort && (host.equals("localhost") || host.equals("127.0.0.1"))) {
+                    continue;
+                }
+                links.add(new RelayLink(host, peerPort));
+            }
+        }
+ 
+        void start() throws IOException {
+            ServerSocket relaySocket = new ServerSocket(relayPort);
+            System.out.println("Node " + nodeId + " relaying on port " + relayPort + " to " + links.size() + " peers");
+ 
+            Thread acceptor = new Thread(() -> {
+                while (serverRunning) {
+                    try {
+                        Socket peer = relaySocket.accept();
+                        Thread receiver = new Thread(() -> receive(peer), "relay-in-" + peer.getPort());
+                        receiver.setDaemon(true);
+                        receiver.start();
+                    } catch (IOException e) {
+                        if (serverRunning) {
+                            System.out.println("Relay accept error: " + e.getMessage());
+                        }
+                    }
+                }
+            }, "relay-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+ 
+            for (RelayLink link : links) {
+                link.start();
+            }
+        }
+ 
+        // Queues a client broadcast for every peer; returns the number of peers it was queued for.
+        // Synchronized so that ids reach every link queue in the order they were assigned.
+        synchronized int relay(String from, String text) {
+            RelayMessage message = new RelayMessage(nodeId, incarnation, ++nextMessageId, from, text);
+            int queued = 0;
+            for (RelayLink link : links) {
+                if (link.queue.offer(message)) {
+                    queued++;
+                } else {
+                    stats.relayDropped.increment();
+                }
+            }
+            return queued;
+        }
+ 
+        int linksUp() {
+            int up = 0;
+            for (RelayLink link : links) {
+                if (link.connected) up++;
+            }
+            return up;
+        }
+ 
+        int queuedMessages() {
+            int queued = 0;
+            for (RelayLink link : links) {
+                queued += link.queue.size();
+            }
+            return queued;
+        }
+ 
+        private void receive(Socket peer) {
+            try (Socket s = peer;
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+                String peerId = in.readUTF();
+                System.out.println("Relay link from " + peerId + " established");
+                while (serverRunning) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String origin = in.readUTF();
+                        long originIncarnation = in.readLong();
+                        long id = in.readLong();
+                        String from = in.readUTF();
+                        String text = in.readUTF();
+                        String key = origin + "#" + originIncarnation;
+                        if (origin.equals(nodeId) || lastDelivered.getOrDefault(key, 0L) >= id) {
+                            continue;
+                        }
+                        if (!lastDelivered.containsKey(key)) {
+                            // A new incarnation means the origin restarted; forget the old one
+                            lastDelivered.keySet().removeIf(k -> k.startsWith(origin + "#"));
+                        }
+                        lastDelivered.put(key, id);
+                        stats.relayMessagesIn.increment();
+                        deliverLocally("[BROADCAST from " + from + "@" + origin + "] " + text, null);
+                    }
+                }
+            } catch (IOException e) {
+                if (serverRunning) {
+                    System.out.println("Relay link from " + peer.getInetAddress() + ":" + peer.getPort() + " closed: " + e.getMessage());
+                }
+            }
+        }
+ 
+        static class RelayMessage {
+            final String origin;
+            final long incarnation;
+            final long id;
+            final String from;
+            final String text;
+ 
+            RelayMessage(String origin, long incarnation, long id, String from, String text) {
+                this.origin = origin;
+                this.incarnation = incarnation;
+                this.id = id;
+                this.from = from;
+                this.text = text;
+            }
+        }
+ 
+        class RelayLink extends Thread {
+            private final String host;
+            private final int peerPort;
+            final LinkedBlockingQueue<RelayMessage> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+            volatile boolean connected = false;
+ 
+            RelayLink(String host, int peerPort) {
+                super("relay-out-" + host + ":" + peerPort);
+                this.host = host;
+                this.peerPort = peerPort;
+                setDaemon(true);
+            }
+ 
+            @Override
+            public void run() {
+                List<RelayMessage> batch = new ArrayList<>(MAX_BATCH);
+                while (serverRunning) {
+                    try (Socket socket = new Socket(host, peerPort);
+                         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                        socket.setTcpNoDelay(true);
+                        out.writeUTF(nodeId);
+                        out.flush();
+                        connected = true;
+                        System.out.println("Relay link to " + host + ":" + peerPort + " established");
+ 
+                        while (serverRunning) {
+                            if (batch.isEmpty()) {
+                                RelayMessage first = queue.poll(1, TimeUnit.SECONDS);
+                                if (first == null) continue;
+                                batch.add(first);
+                                queue.drainTo(batch, MAX_BATCH - 1);
+                            }
+ 
+                            out.writeInt(batch.size());
+                            for (RelayMessage m : batch) {
+                                out.writeUTF(m.origin);
+                                out.writeLong(m.incarnation);
+                                out.writeLong(m.id);
+                                out.writeUTF(m.from);
+                                out.writeUTF(m.text);
+                            }
+                            out.flush();
+                            stats.relayBatchesOut.increment();
+                            stats.relayMessagesOut.add(batch.size());
+                            batch.clear();
+                        }
+                    } catch (IOException e) {
+                        // A batch that failed mid-write is resent whole after reconnecting
+                        if (connected) {
+                            System.out.println("Relay link to " + host + ":" + peerPort + " lost: " + e.getMessage());
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    connected = false;
+ 
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+ 
+ 
+    // Hashed timing wheel: timers hash into slots by deadline, and each tick only
+    // visits one slot, so scheduling, cancelling and expiring are O(1) per timer
+    // regardless of how many connections are being tracked. New timers are queued
+    // and moved into the wheel by the ticker thread, which is the only thread
+    // that touches the slots.
+    static class TimingWheel {
+        private final long tickMillis;
+        private final ArrayDeque<Timeout>[] slots;
+        private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger activeTimers = new AtomicInteger();
+        // Expired tasks run off the ticker, so a slow one can't delay the wheel
+        private final ExecutorService taskExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "idle-timer-task");
+            t.setDaemon(true);
+            return t;
+        });
+        private long tick = 0;
+        private long startTime;
+ 
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        TimingWheel(long tickMillis, int slotCount) {
+            this.tickMillis = tickMillis;
+            this.slots = new ArrayDeque[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                slots[i] = new ArrayDeque<>();
+            }
+        }
+ 
+        void start() {
+            startTime = System.currentTimeMillis();
+            Thread ticker = new Thread(this::run, "idle-timer-wheel");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+ 
+        Timeout schedule(long delayMillis, Runnable task) {
+            Timeout timeout = new Timeout(System.currentTimeMillis() + Math.max(delayMillis, 0), task);
+            activeTimers.incrementAndGet();
+            pending.add(timeout);
+            return timeout;
+        }
+ 
+        int pendingTimers() {
+            return activeTimers.get();
+        }
+ 
+        private void run() {
+            while (serverRunning) {
+                long nextTickTime = startTime + (tick + 1) * tickMillis;
+                long sleep = nextTickTime - System.currentTimeMillis();
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+ 
+                transferPending();
+                expireSlot(slots[(int) (tick % slots.length)]);
+                tick++;
+            }
+        }
+ 
+        private void transferPending() {
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (timeout.cancelled) {
+                    activeTimers.decrementAndGet();
+                    continue;
+                }
+                // Never place a timer in a tick that has already been processed
+                long targetTick = Math.max((timeout.deadline - startTime) / tickMillis, tick);
+                timeout.remainingRounds = (targetTick - tick) / slots.length;
+                slots[(int) (targetTick % slots.length)].add(timeout);
+            }
+        }
+ 
+        private void expireSlot(ArrayDeque<Timeout> slot) {
+            int count = slot.size();
+            for (int i = 0; i < count; i++) {
+                Timeout timeout = slot.poll();
+                if (timeout.cancelled) {
+                    activeTimers.decrementAndGet();
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                    slot.add(timeout);
+                } else {
+                    activeTimers.decrementAndGet();
+                    taskExecutor.execute(timeout.task);
+                }
+            }
+        }
+ 
+        static class Timeout {
+            private final long deadline;
+            private final Runnable task;
+            private long remainingRounds;
+            private volatile boolean cancelled = false;
+ 
+            Timeout(long deadline, Runnable task) {
+                this.deadline = deadline;
+                this.task = task;
+            }
+ 
+            void cancel() {
+                cancelled = true;
+            }
+        }
+    }
+ 
+ 
+    static class CountingInputStream extends FilterInputStream {
+        private final LongAdder counter;
+ 
+        CountingInputStream(InputStream in, LongAdder counter) {
+            super(in);
+            this.counter = counter;
+        }
+ 
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) counter.increment();
+            return b;
+        }
+ 
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) counter.add(n);
+            return n;
+        }
+    }
+ 
+ 
+    static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder counter;
+ 
+        CountingOutputStream(OutputStream out, LongAdder counter) {
+            super(out);
+            this.counter = counter;
+        }
+ 
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+ 
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
     }
 }
\ No newline at end of file
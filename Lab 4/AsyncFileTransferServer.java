@@ -0,0 +1,403 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Same protocol as FileTransferServer for LIST_FILES, FILE:<n> and EXIT, but with no thread
+// per client: every connection is a chain of completion handlers on one small fixed pool.
+// A download reads the file with AsynchronousFileChannel into one of BUFFERS_PER_TRANSFER
+// buffers while the previous buffer is being written to the socket, so thousands of
+// concurrent downloads need memory for their buffers, not for their threads.
+// Usage: java AsyncFileTransferServer [port] [threads]
+public class AsyncFileTransferServer {
+    private static final int DEFAULT_PORT = 22223;
+    private static final String EXIT_COMMAND = "EXIT";
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFERS_PER_TRANSFER = 2;
+    // Requests are short writeUTF strings; a connection sending a longer one is dropped
+    private static final int MAX_REQUEST_SIZE = 4096;
+    // LIST_FILES rescans the directory at most this often
+    private static final long LISTING_MAX_AGE_MS = 1000;
+
+    private static volatile boolean serverRunning = true;
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final AtomicLong transfers = new AtomicLong();
+    private static final AtomicLong bytesSent = new AtomicLong();
+    private static volatile FileTransferServer.FileListing fileListing;
+    private static volatile long listingScannedAt = 0;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withThreadPool(pool);
+        AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open(group);
+        server.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+        System.out.println("Async File Transfer Server Started on port " + port + " with " + threads + " threads");
+        System.out.println("Type '" + EXIT_COMMAND + "' to shut down the server, 'CLIENTS' for statistics");
+        System.out.println("Files will be served from the current directory: " + new File(".").getAbsolutePath());
+
+        server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel channel, Void attachment) {
+                server.accept(null, this);
+                new Connection(channel, pool).start();
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                if (serverRunning && server.isOpen()) {
+                    System.out.println("Accept failed: " + e.getMessage());
+                    server.accept(null, this);
+                }
+            }
+        });
+
+        Scanner scanner = new Scanner(System.in);
+        while (serverRunning && scanner.hasNextLine()) {
+            String command = scanner.nextLine();
+            if (command.equalsIgnoreCase(EXIT_COMMAND)) {
+                serverRunning = false;
+            } else if (command.equalsIgnoreCase("CLIENTS")) {
+                System.out.println("Connected clients: " + connections.get() + ", completed transfers: " + transfers.get()
+                        + ", sent: " + formatFileSize(bytesSent.get()) + ", threads: " + threads);
+            }
+        }
+        if (!serverRunning) {
+            System.out.println("Server shutdown initiated...");
+            server.close();
+            group.shutdownNow();
+            group.awaitTermination(5, TimeUnit.SECONDS);
+            System.out.println("Server has been shut down.");
+        } else {
+            // No console (e.g. started in the background), so serve until killed
+            group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+    }
+
+    private static FileTransferServer.FileListing currentListing() {
+        long now = System.currentTimeMillis();
+        FileTransferServer.FileListing listing = fileListing;
+        if (listing == null || now - listingScannedAt > LISTING_MAX_AGE_MS) {
+            synchronized (AsyncFileTransferServer.class) {
+                if (fileListing == listing) {
+                    fileListing = FileTransferServer.FileListing.scan(new File("."), listing == null ? 1 : listing.version + 1);
+                    listingScannedAt = now;
+                }
+                listing = fileListing;
+            }
+        }
+        return listing;
+    }
+
+    // The writeUTF encoding the clients' DataInputStream.readUTF expects
+    private static ByteBuffer encode(String message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeUTF(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    // One client. Requests are handled strictly one after another: the next request isn't
+    // parsed until the reply to the current one has been written in full, which also keeps
+    // at most one socket write outstanding, as AsynchronousSocketChannel requires.
+    static final class Connection {
+        private final AsynchronousSocketChannel channel;
+        private final ExecutorService pool;
+        private final String clientAddress;
+        private final ByteBuffer requests = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private FileTransferServer.FileListing listedFiles;
+
+        Connection(AsynchronousSocketChannel channel, ExecutorService pool) {
+            this.channel = channel;
+            this.pool = pool;
+            String address;
+            try {
+                address = String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                address = "unknown client";
+            }
+            this.clientAddress = address;
+        }
+
+        void start() {
+            connections.incrementAndGet();
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                // Only affects latency of small replies
+            }
+            write(encode("Welcome to the file transfer server! Type 'EXIT' to disconnect, 'LIST_FILES' to see available files, or 'FILE:<filename>' to download a file."),
+                    this::nextRequest);
+        }
+
+        // Handles a request already in the buffer, or reads more until one is complete
+        private void nextRequest() {
+            requests.flip();
+            if (requests.remaining() >= 2) {
+                int length = requests.getShort(requests.position()) & 0xFFFF;
+                if (2 + length > requests.capacity()) {
+                    close("request too long");
+                    return;
+                }
+                if (requests.remaining() >= 2 + length) {
+                    byte[] frame = new byte[2 + length];
+                    requests.get(frame);
+                    requests.compact();
+                    String message;
+                    try {
+                        message = new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+                    } catch (IOException e) {
+                        close("malformed request");
+                        return;
+                    }
+                    handle(message);
+                    return;
+                }
+            }
+            requests.compact();
+            channel.read(requests, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer read, Void attachment) {
+                    if (read < 0) {
+                        close(null);
+                    } else {
+                        nextRequest();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    close(e.getMessage());
+                }
+            });
+        }
+
+        private void handle(String message) {
+            if (message.equalsIgnoreCase("EXIT")) {
+                write(encode("Goodbye! Disconnecting your session."), () -> close(null));
+            } else if (message.equalsIgnoreCase("LIST_FILES")) {
+                FileTransferServer.FileListing listing = currentListing();
+                listedFiles = listing;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream reply = new DataOutputStream(bytes)) {
+                    reply.writeUTF("FILE_LIST");
+                    reply.writeInt(listing.entries.size());
+                    for (FileTransferServer.FileListing.Entry entry : listing.entries) {
+                        reply.writeUTF(entry.display);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                write(ByteBuffer.wrap(bytes.toByteArray()), this::nextRequest);
+            } else if (message.startsWith("FILE:")) {
+                FileTransferServer.FileListing.Entry entry = null;
+                try {
+                    int fileNo = Integer.parseInt(message.substring("FILE:".length()).trim());
+                    entry = listedFiles == null ? null : listedFiles.get(fileNo);
+                } catch (NumberFormatException e) {
+                    // Reported below as an invalid number
+                }
+                if (entry == null) {
+                    write(encode("Invalid file number. Please try again."), this::nextRequest);
+                    return;
+                }
+                sendFile(new File(entry.name));
+            } else if (message.equals("FILE_RECEIVED")) {
+                nextRequest();
+            } else {
+                write(encode("Not supported by the async engine: " + message), this::nextRequest);
+            }
+        }
+
+        private void sendFile(File file) {
+            AsynchronousFileChannel fileChannel;
+            long fileSize;
+            try {
+                fileChannel = AsynchronousFileChannel.open(file.toPath(), Collections.singleton(StandardOpenOption.READ), pool);
+                fileSize = fileChannel.size();
+            } catch (IOException e) {
+                write(encode("NOT_FOUND"), this::nextRequest);
+                return;
+            }
+            ByteBuffer header = encode("FOUND");
+            ByteBuffer reply = ByteBuffer.allocate(header.remaining() + 8);
+            reply.put(header).putLong(fileSize).flip();
+            write(reply, () -> new Transfer(fileChannel, fileSize).pump());
+        }
+
+        // read-file -> write-socket chain with BUFFERS_PER_TRANSFER buffers: while one
+        // buffer is written to the socket the next is already being filled from the file.
+        // At most one read and one write are outstanding; completions may run on any pool
+        // thread, so the state is guarded by the transfer's lock.
+        private final class Transfer {
+            private final AsynchronousFileChannel file;
+            private final long fileSize;
+            private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+            private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<>();
+            private long readPosition = 0;
+            private boolean reading = false;
+            private boolean writing = false;
+            private boolean done = false;
+
+            Transfer(AsynchronousFileChannel file, long fileSize) {
+                this.file = file;
+                this.fileSize = fileSize;
+                for (int i = 0; i < BUFFERS_PER_TRANSFER; i++) {
+                    free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+                }
+            }
+
+            synchronized void pump() {
+                if (done) {
+                    return;
+                }
+                if (!reading && readPosition < fileSize && !free.isEmpty()) {
+                    ByteBuffer buffer = free.poll();
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), fileSize - readPosition));
+                    reading = true;
+                    file.read(buffer, readPosition, buffer, readCompleted);
+                }
+                if (!writing && !filled.isEmpty()) {
+                    writing = true;
+                    ByteBuffer buffer = filled.peek();
+                    channel.write(buffer, buffer, writeCompleted);
+                }
+                if (!reading && !writing && filled.isEmpty() && readPosition >= fileSize) {
+                    finish(null);
+                }
+            }
+
+            private synchronized void finish(Throwable error) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Nothing left to clean up
+                }
+                if (error != null) {
+                    close(error.getMessage());
+                } else {
+                    transfers.incrementAndGet();
+                    nextRequest();
+                }
+            }
+
+            private final CompletionHandler<Integer, ByteBuffer> readCompleted = new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer read, ByteBuffer buffer) {
+                    synchronized (Transfer.this) {
+                        reading = false;
+                        if (read <= 0) {
+                            // The file shrank under us; the client can't get the size it was promised
+                            finish(new IOException("file changed during transfer"));
+                            return;
+                        }
+                        buffer.flip();
+                        readPosition += read;
+                        filled.add(buffer);
+                        pump();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, ByteBuffer buffer) {
+                    finish(e);
+                }
+            };
+
+            private final CompletionHandler<Integer, ByteBuffer> writeCompleted = new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer written, ByteBuffer buffer) {
+                    bytesSent.addAndGet(written);
+                    synchronized (Transfer.this) {
+                        if (buffer.hasRemaining()) {
+                            channel.write(buffer, buffer, this);
+                            return;
+                        }
+                        writing = false;
+                        filled.poll();
+                        free.add(buffer);
+                        pump();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, ByteBuffer buffer) {
+                    finish(e);
+                }
+            };
+        }
+
+        // Writes the whole buffer, then continues with next
+        private void write(ByteBuffer buffer, Runnable next) {
+            channel.write(buffer, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer written, Void attachment) {
+                    if (buffer.hasRemaining()) {
+                        channel.write(buffer, null, this);
+                    } else {
+                        next.run();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    close(e.getMessage());
+                }
+            });
+        }
+
+        private void close(String error) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (error != null && serverRunning) {
+                System.out.println("Error with client " + clientAddress + ": " + error);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            connections.decrementAndGet();
+        }
+    }
+
+    private static String formatFileSize(long size) {
+        if (size < 1024) {
+            return size + " B";
+        } else if (size < 1024 * 1024) {
+            return String.format("%.2f KB", size / 1024.0);
+        } else if (size < 1024 * 1024 * 1024) {
+            return String.format("%.2f MB", size / (1024.0 * 1024));
+        } else {
+            return String.format("%.2f GB", size / (1024.0 * 1024 * 1024));
+        }
+    }
+}
@@ -1,6 +1,18 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
  
 public class Client {
     // private static final String SERVER_IP = "localhost";
@@ -9,6 +21,32 @@ public class Client {
     private static final String EXIT_COMMAND = "EXIT";
     private static final String LIST_FILES_COMMAND = "LIST_FILES";
     private static final String FILE_REQUEST_PREFIX = "FILE:";
+    private static final String RESUME_REQUEST_PREFIX = "RESUME:";
+    // PFILE:<n>[:<connections>] downloads file n over several parallel connections
+    private static final String PARALLEL_REQUEST_PREFIX = "PFILE:";
+    // Downloads are sent as VERIFY:<n>, which returns per-chunk checksums after the data
+    private static final String VERIFY_REQUEST_PREFIX = "VERIFY:";
+    // ZFILE:<n> is sent as COMPRESS:<n>; the server compresses the file if it's worth it
+    private static final String COMPRESSED_REQUEST_PREFIX = "ZFILE:";
+    private static final String COMPRESS_REQUEST_PREFIX = "COMPRESS:";
+    // FILE:<n> for a file already in downloads is sent as DELTA:<n> plus block checksums
+    // of the local copy, and only the parts that changed come back
+    private static final String DELTA_REQUEST_PREFIX = "DELTA:";
+    // BATCH:<numbers like 1,3-5> or BATCH:<glob like *.txt> fetches many files in one stream
+    private static final String BATCH_REQUEST_PREFIX = "BATCH:";
+    private static final int MIN_DELTA_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_DELTA_BLOCK_SIZE = 128 * 1024;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int DEFAULT_CONNECTIONS = 4;
+    // SWARM:<n>:<host:port>[,<host:port>...] downloads file n from this server and the listed
+    // peers together; peers are other FileTransferServers holding the same file
+    private static final String SWARM_REQUEST_PREFIX = "SWARM:";
+    // Downloads land in <name>.part and are renamed when complete, so an interrupted
+    // download can be picked up from where it stopped
+    private static final String PART_SUFFIX = ".part";
+    // Parallel downloads fill a full-size .part out of order and record which chunks
+    // are written in <name>.part.chunks, so they can resume the missing ones
+    private static final String CHUNKS_SUFFIX = ".chunks";
     private static final String DOWNLOADS_DIR = "downloads";
     private static final int BUFFER_SIZE = 4096;
  
@@ -62,7 +100,17 @@ public class Client {
                 } else if (message.equals("FILE_LIST")) {
                     handleFileListResponse();
                 } else if (message.equals("FOUND")) {
-                    handleFileDownload();
+                    handleFileDownload(false);
+                } else if (message.equals("FOUND_RANGE")) {
+                    handleFileDownload(true);
+                } else if (message.equals("FOUND_VERIFIED")) {
+                    handleVerifiedDownload();
+                } else if (message.equals("FOUND_COMPRESSED")) {
+                    handleCompressedDownload();
+                } else if (message.equals("FOUND_DELTA")) {
+                    handleDeltaDownload();
+                } else if (message.equals("BATCH")) {
+                    handleBatchDownload();
                 } else if (message.equals("NOT_FOUND")) {
                     System.out.println("Requested file not found on server.");
                 } else {
@@ -107,25 +155,36 @@ public class Client {
         }
     }
  
-    private void handleFileDownload() {
+    private void handleFileDownload(boolean ranged) {
         try {
             // Get the currently requested filename
             String currentRequest = getCurrentRequestFileName();
  
-            // First, receive the file size
+            // First, receive the file size (and for a resumed download, where the server starts)
             long fileSize = in.readLong();
+            long offset = ranged ? in.readLong() : 0;
  
             // Preserve original filename
             String fileName = currentRequest;
  
             File outputFile = new File(DOWNLOADS_DIR + File.separator + fileName);
-            System.out.println("Downloading file (" + formatFileSize(fileSize) + ")...");
+            File partFile = new File(DOWNLOADS_DIR + File.separator + fileName + PART_SUFFIX);
+            if (offset > 0) {
+                System.out.println("Resuming download at " + formatFileSize(offset) + " of " + formatFileSize(fileSize) + "...");
+            } else {
+                System.out.println("Downloading file (" + formatFileSize(fileSize) + ")...");
+            }
+ 
+            // The verification hash covers the whole file, so start with the bytes we already have
+            MessageDigest digest = ranged ? hashPrefix(partFile, offset) : null;
  
-            // Create output file stream
-            try (FileOutputStream fileOut = new FileOutputStream(outputFile)) {
+            ChunkMap.discard(partFile);
+            try (RandomAccessFile fileOut = new RandomAccessFile(partFile, "rw")) {
+                fileOut.setLength(offset);
+                fileOut.seek(offset);
                 byte[] buffer = new byte[BUFFER_SIZE];
                 int bytesRead;
-                long totalReceived = 0;
+                long totalReceived = offset;
                 long startTime = System.currentTimeMillis();
  
                 // Read file data in chunks
@@ -137,6 +196,9 @@ public class Client {
                     }
  
                     fileOut.write(buffer, 0, bytesRead);
+                    if (digest != null) {
+                        digest.update(buffer, 0, bytesRead);
+                    }
                     totalReceived += bytesRead;
  
                     // Show progress for larger files
@@ -150,22 +212,544 @@ public class Client {
                     }
                 }
  
+                if (totalReceived < fileSize) {
+                    System.out.println("Download interrupted. " + formatFileSize(totalReceived) +
+                            " kept in " + partFile.getName() + "; request the file again to resume.");
+                    return;
+                }
+ 
                 long endTime = System.currentTimeMillis();
-                double duration = (endTime - startTime) / 1000.0;
+                double duration = Math.max((endTime - startTime) / 1000.0, 0.001);
  
-                System.out.println("Download complete! File saved to: " + outputFile.getAbsolutePath());
                 System.out.println("Time: " + String.format("%.2f", duration) + " seconds, Speed: " +
-                        formatFileSize((long) (fileSize / duration)) + "/s");
+                        formatFileSize((long) ((fileSize - offset) / duration)) + "/s");
+            }
+ 
+            boolean verified = true;
+            if (ranged) {
+                String expectedHash = in.readUTF();
+                verified = expectedHash.equals(toHex(digest.digest()));
+            }
+ 
+            if (verified) {
+                Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Download complete! File saved to: " + outputFile.getAbsolutePath());
+            } else {
+                // Most likely the file changed on the server since the partial copy was made
+                partFile.delete();
+                System.out.println("Integrity check failed for " + fileName + ". Partial data discarded; please download it again.");
+            }
+ 
+            // Send acknowledgment to server
+            out.writeUTF("FILE_RECEIVED");
+ 
+        } catch (IOException e) {
+            System.out.println("Error downloading file: " + e.getMessage());
+        }
+    }
+ 
+    // Inflates blocks as they arrive and writes them straight to the .part file. A block
+    // that fails its CRC stops the writing; the rest of the stream is still read so the
+    // connection stays usable, and the good blocks before it are kept for a resume.
+    private void handleCompressedDownload() {
+        try {
+            String fileName = getCurrentRequestFileName();
+            long fileSize = in.readLong();
+            boolean compressed = in.readBoolean();
+            File outputFile = new File(DOWNLOADS_DIR + File.separator + fileName);
+            File partFile = new File(DOWNLOADS_DIR + File.separator + fileName + PART_SUFFIX);
+            System.out.println("Downloading file (" + formatFileSize(fileSize) + ")" +
+                    (compressed ? " compressed..." : "; server sends it uncompressed..."));
+
+            long startTime = System.currentTimeMillis();
+            long totalReceived = 0;
+            long wireBytes = 0;
+            boolean corrupt = false;
+            ChunkMap.discard(partFile);
+            try (FileOutputStream fileOut = new FileOutputStream(partFile)) {
+                if (!compressed) {
+                    byte[] buffer = new byte[64 * 1024];
+                    while (totalReceived < fileSize) {
+                        int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalReceived));
+                        if (bytesRead == -1) {
+                            break;
+                        }
+                        fileOut.write(buffer, 0, bytesRead);
+                        totalReceived += bytesRead;
+                    }
+                    wireBytes = totalReceived;
+                } else {
+                    Inflater inflater = new Inflater();
+                    CRC32C crc = new CRC32C();
+                    byte[] stored = new byte[0];
+                    byte[] raw = new byte[0];
+                    int lastReported = 0;
+                    try {
+                        int rawLength;
+                        while ((rawLength = in.readInt()) > 0) {
+                            int storedLength = in.readInt();
+                            int expectedCrc = in.readInt();
+                            if (storedLength <= 0 || storedLength > rawLength) {
+                                throw new IOException("Malformed compressed block");
+                            }
+                            if (stored.length < storedLength) {
+                                stored = new byte[storedLength];
+                            }
+                            if (raw.length < rawLength) {
+                                raw = new byte[rawLength];
+                            }
+                            in.readFully(stored, 0, storedLength);
+                            wireBytes += 12 + storedLength;
+                            if (corrupt) {
+                                continue;
+                            }
+
+                            byte[] block = stored;
+                            if (storedLength < rawLength) {
+                                inflater.reset();
+                                inflater.setInput(stored, 0, storedLength);
+                                int inflated = 0;
+                                try {
+                                    while (inflated < rawLength && !inflater.finished()) {
+                                        int n = inflater.inflate(raw, inflated, rawLength - inflated);
+                                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                                            break;
+                                        }
+                                        inflated += n;
+                                    }
+                                } catch (DataFormatException e) {
+                                    inflated = -1;
+                                }
+                                block = raw;
+                                corrupt = inflated != rawLength;
+                            }
+                            if (!corrupt) {
+                                crc.reset();
+                                crc.update(block, 0, rawLength);
+                                corrupt = (int) crc.getValue() != expectedCrc;
+                            }
+                            if (corrupt) {
+                                continue;
+                            }
+                            fileOut.write(block, 0, rawLength);
+                            totalReceived += rawLength;
+
+                            int progress = (int) (totalReceived * 100 / fileSize);
+                            if (fileSize > 1024 * 1024 && progress / 20 > lastReported / 20) {
+                                System.out.println("Downloaded: " + progress + "% (" +
+                                        formatFileSize(totalReceived) + " / " + formatFileSize(fileSize) + ")");
+                                lastReported = progress;
+                            }
+                        }
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            }
+
+            out.writeUTF("FILE_RECEIVED");
+            if (corrupt || totalReceived < fileSize) {
+                System.out.println((corrupt ? "A block failed its checksum. " : "Download interrupted. ") +
+                        formatFileSize(totalReceived) + " kept in " + partFile.getName() +
+                        "; request the file again to resume.");
+                return;
+            }
+
+            Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            double duration = Math.max((System.currentTimeMillis() - startTime) / 1000.0, 0.001);
+            System.out.println("Download complete! File saved to: " + outputFile.getAbsolutePath());
+            System.out.println("Time: " + String.format("%.2f", duration) + " seconds, Speed: " +
+                    formatFileSize((long) (fileSize / duration)) + "/s" +
+                    (compressed ? String.format(", %s on the wire (%.1f%%)", formatFileSize(wireBytes),
+                            fileSize == 0 ? 100.0 : wireBytes * 100.0 / fileSize) : ""));
+        } catch (IOException e) {
+            System.out.println("Error downloading file: " + e.getMessage());
+        }
+    }
+
+    // Rebuilds the new version in the .part file from the local copy plus the literal bytes
+    // the server sends, then swaps it in once its SHA-256 matches the server's
+    private void handleDeltaDownload() {
+        try {
+            String fileName = getCurrentRequestFileName();
+            long fileSize = in.readLong();
+            int blockSize = in.readInt();
+            File outputFile = new File(DOWNLOADS_DIR + File.separator + fileName);
+            File partFile = new File(DOWNLOADS_DIR + File.separator + fileName + PART_SUFFIX);
+            System.out.println("Updating local copy of " + fileName + " (" + formatFileSize(fileSize) + ") with a delta...");
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 not supported", e);
+            }
+
+            long startTime = System.currentTimeMillis();
+            long reused = 0;
+            long downloaded = 0;
+            try (RandomAccessFile basis = new RandomAccessFile(outputFile, "r");
+                 FileOutputStream fileOut = new FileOutputStream(partFile)) {
+                byte[] buffer = new byte[64 * 1024];
+                long basisSize = basis.length();
+                int op;
+                while ((op = in.readUnsignedByte()) != 0) {
+                    if (op == 1) {
+                        // COPY: a run of blocks from the local copy
+                        long offset = (long) in.readInt() * blockSize;
+                        long remaining = Math.min((long) in.readInt() * blockSize, basisSize - offset);
+                        if (offset < 0 || remaining < 0) {
+                            throw new IOException("Delta refers past the end of the local copy");
+                        }
+                        basis.seek(offset);
+                        while (remaining > 0) {
+                            int length = (int) Math.min(buffer.length, remaining);
+                            basis.readFully(buffer, 0, length);
+                            fileOut.write(buffer, 0, length);
+                            digest.update(buffer, 0, length);
+                            remaining -= length;
+                            reused += length;
+                        }
+                    } else if (op == 2) {
+                        // LITERAL: new bytes from the server
+                        int length = in.readInt();
+                        if (length < 0) {
+                            throw new IOException("Malformed delta");
+                        }
+                        if (length > buffer.length) {
+                            buffer = new byte[length];
+                        }
+                        in.readFully(buffer, 0, length);
+                        fileOut.write(buffer, 0, length);
+                        digest.update(buffer, 0, length);
+                        downloaded += length;
+                    } else {
+                        throw new IOException("Unknown delta op " + op);
+                    }
+                }
+            }
+
+            String expectedHash = in.readUTF();
+            out.writeUTF("FILE_RECEIVED");
+            if (!expectedHash.equals(toHex(digest.digest())) || reused + downloaded != fileSize) {
+                partFile.delete();
+                System.out.println("Rebuilt file failed verification. Delete " + outputFile.getName() + " and download it again for a full copy.");
+                return;
+            }
+
+            Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            double duration = Math.max((System.currentTimeMillis() - startTime) / 1000.0, 0.001);
+            System.out.println("Update complete! File saved to: " + outputFile.getAbsolutePath());
+            System.out.println("Reused " + formatFileSize(reused) + " from the local copy, downloaded " + formatFileSize(downloaded) +
+                    String.format(" (%.2f%% of the file) in %.2f seconds", fileSize == 0 ? 0.0 : downloaded * 100.0 / fileSize, duration));
+        } catch (IOException e) {
+            System.out.println("Error downloading file: " + e.getMessage());
+        }
+    }
+
+    // Unpacks the batch stream file by file as it arrives. Reading through a buffer is safe
+    // here because the server sends nothing after the end marker until it gets our ack.
+    private void handleBatchDownload() {
+        try {
+            int count = in.readInt();
+            System.out.println("Receiving a batch of " + count + " files...");
+            DataInputStream batchIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+            byte[] buffer = new byte[64 * 1024];
+            CRC32C crc = new CRC32C();
+            long startTime = System.currentTimeMillis();
+            int received = 0;
+            int failed = 0;
+            long totalBytes = 0;
+            int lastReported = 0;
+
+            while (batchIn.readBoolean()) {
+                String fileName = batchIn.readUTF();
+                long size = batchIn.readLong();
+                // Names come from the server's directory listing, but never write outside downloads/
+                boolean safeName = !fileName.isEmpty() && new File(fileName).getName().equals(fileName);
+                File outputFile = new File(DOWNLOADS_DIR + File.separator + fileName);
+                File partFile = new File(DOWNLOADS_DIR + File.separator + fileName + PART_SUFFIX);
+
+                crc.reset();
+                if (safeName) {
+                    ChunkMap.discard(partFile);
+                }
+                try (OutputStream fileOut = safeName ? new FileOutputStream(partFile) : OutputStream.nullOutputStream()) {
+                    long remaining = size;
+                    while (remaining > 0) {
+                        int read = batchIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new EOFException("Connection closed in the middle of " + fileName);
+                        }
+                        fileOut.write(buffer, 0, read);
+                        crc.update(buffer, 0, read);
+                        remaining -= read;
+                    }
+                }
+                int expectedCrc = batchIn.readInt();
+
+                if (safeName && (int) crc.getValue() == expectedCrc) {
+                    Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    received++;
+                    totalBytes += size;
+                } else {
+                    partFile.delete();
+                    failed++;
+                    System.out.println("Skipped " + fileName + (safeName ? ": checksum mismatch" : ": unsafe file name"));
+                }
+
+                int progress = count == 0 ? 100 : (received + failed) * 100 / count;
+                if (count >= 100 && progress / 20 > lastReported / 20) {
+                    System.out.println("Received " + (received + failed) + " of " + count + " files (" + formatFileSize(totalBytes) + ")");
+                    lastReported = progress;
+                }
+            }
+            out.writeUTF("FILE_RECEIVED");
+
+            double duration = Math.max((System.currentTimeMillis() - startTime) / 1000.0, 0.001);
+            System.out.println("Batch complete! " + received + " files (" + formatFileSize(totalBytes) + ") saved to " +
+                    new File(DOWNLOADS_DIR).getAbsolutePath() + (failed > 0 ? ", " + failed + " failed" : ""));
+            System.out.println("Time: " + String.format("%.2f", duration) + " seconds, " +
+                    String.format("%.0f files/s, ", received / duration) + formatFileSize((long) (totalBytes / duration)) + "/s");
+        } catch (IOException e) {
+            System.out.println("Error receiving batch: " + e.getMessage());
+        }
+    }
+
+    // Checksums of each block of the local copy: size, block size, count, then per block
+    // the rsync rolling checksum and an MD5. Blocks are about sqrt(size) bytes, which keeps
+    // both the signature and the literal data around a changed byte small.
+    private static byte[] blockSignature(File file) throws IOException {
+        long size = file.length();
+        int blockSize = (int) Math.max(MIN_DELTA_BLOCK_SIZE,
+                Math.min(MAX_DELTA_BLOCK_SIZE, Long.highestOneBit((long) Math.sqrt(size))));
+        int count = (int) ((size + blockSize - 1) / blockSize);
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not supported", e);
+        }
+
+        ByteArrayOutputStream signature = new ByteArrayOutputStream(16 + count * 20);
+        DataOutputStream signatureOut = new DataOutputStream(signature);
+        signatureOut.writeLong(size);
+        signatureOut.writeInt(blockSize);
+        signatureOut.writeInt(count);
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            byte[] block = new byte[blockSize];
+            for (int i = 0; i < count; i++) {
+                int length = fileIn.readNBytes(block, 0, (int) Math.min(blockSize, size - (long) i * blockSize));
+                int a = 0;
+                int b = 0;
+                for (int j = 0; j < length; j++) {
+                    a += block[j] & 0xFF;
+                    b += (length - j) * (block[j] & 0xFF);
+                }
+                signatureOut.writeInt((a & 0xFFFF) | (b << 16));
+                md5.update(block, 0, length);
+                signatureOut.write(md5.digest());
+            }
+        }
+        return signature.toByteArray();
+    }
+
+    private static MessageDigest hashPrefix(File partFile, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not supported", e);
+        }
+        if (length == 0) {
+            return digest;
+        }
+        try (FileInputStream fileIn = new FileInputStream(partFile)) {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            int read;
+            while (remaining > 0 && (read = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return digest;
+    }
+ 
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
  
-                // Send acknowledgment to server
-                out.writeUTF("FILE_RECEIVED");
+    private void handleParallelDownload(String arguments) {
+        String[] parts = arguments.split(":");
+        int fileIndex;
+        int connections = DEFAULT_CONNECTIONS;
+        try {
+            fileIndex = Integer.parseInt(parts[0].trim());
+            if (parts.length > 1) {
+                connections = Integer.parseInt(parts[1].trim());
             }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: " + PARALLEL_REQUEST_PREFIX + "<file number>[:<connections>]");
+            return;
+        }
+
+        String fileName = fileMap.get(fileIndex);
+        if (fileName == null) {
+            System.out.println("Unknown file number. Type '" + LIST_FILES_COMMAND + "' first.");
+            return;
+        }
+        if (fileName.contains(" (")) {
+            fileName = fileName.substring(0, fileName.indexOf(" ("));
+        }
+
+        new SegmentedDownload(fileName, Math.max(1, connections)).run();
+    }
  
+    private void handleSwarmDownload(String arguments) {
+        int separator = arguments.indexOf(':');
+        String fileName = null;
+        try {
+            fileName = fileMap.get(Integer.parseInt(arguments.substring(0, Math.max(separator, 0)).trim()));
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        if (separator < 0 || fileName == null) {
+            System.out.println("Usage: " + SWARM_REQUEST_PREFIX + "<file number>:<host:port>[,<host:port>...] (after '" + LIST_FILES_COMMAND + "')");
+            return;
+        }
+        if (fileName.contains(" (")) {
+            fileName = fileName.substring(0, fileName.indexOf(" ("));
+        }
+
+        List<SwarmDownload.Peer> peers = new ArrayList<>();
+        peers.add(new SwarmDownload.Peer(SERVER_IP, SERVER_PORT));
+        for (String peer : arguments.substring(separator + 1).split(",")) {
+            String address = peer.trim();
+            int colon = address.lastIndexOf(':');
+            try {
+                String host = colon > 0 ? address.substring(0, colon) : address;
+                int port = colon > 0 ? Integer.parseInt(address.substring(colon + 1)) : SERVER_PORT;
+                if (!address.isEmpty() && !(host.equals(SERVER_IP) && port == SERVER_PORT)) {
+                    peers.add(new SwarmDownload.Peer(host, port));
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring peer '" + address + "': bad port");
+            }
+        }
+        new SwarmDownload(fileName, peers).run();
+    }
+
+    // Streams the file into its .part file computing a CRC32C per chunk, then checks those
+    // against the ChunkChecksums the server sends after the data. Only chunks that don't match
+    // are fetched again (with SEGMENT requests on a separate connection).
+    private void handleVerifiedDownload() {
+        try {
+            String fileName = getCurrentRequestFileName();
+            long fileSize = in.readLong();
+            File outputFile = new File(DOWNLOADS_DIR + File.separator + fileName);
+            File partFile = new File(DOWNLOADS_DIR + File.separator + fileName + PART_SUFFIX);
+            System.out.println("Downloading file (" + formatFileSize(fileSize) + ") with chunk verification...");
+
+            int[] actualCrcs = new int[(int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            long startTime = System.currentTimeMillis();
+            ChunkMap.discard(partFile);
+            try (RandomAccessFile fileOut = new RandomAccessFile(partFile, "rw")) {
+                fileOut.setLength(0);
+                byte[] buffer = new byte[64 * 1024];
+                CRC32C crc = new CRC32C();
+                long totalReceived = 0;
+                int lastReported = 0;
+
+                for (int chunk = 0; chunk < actualCrcs.length; chunk++) {
+                    crc.reset();
+                    long remaining = Math.min(CHUNK_SIZE, fileSize - totalReceived);
+                    while (remaining > 0) {
+                        int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            System.out.println("Download interrupted. " + formatFileSize(totalReceived) +
+                                    " kept in " + partFile.getName() + "; request the file again to resume.");
+                            return;
+                        }
+                        fileOut.write(buffer, 0, bytesRead);
+                        crc.update(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                        totalReceived += bytesRead;
+                    }
+                    actualCrcs[chunk] = (int) crc.getValue();
+
+                    int progress = (int) (totalReceived * 100 / fileSize);
+                    if (fileSize > 1024 * 1024 && progress / 20 > lastReported / 20) {
+                        System.out.println("Downloaded: " + progress + "% (" +
+                                formatFileSize(totalReceived) + " / " + formatFileSize(fileSize) + ")");
+                        lastReported = progress;
+                    }
+                }
+            }
+
+            ChunkChecksums expected = ChunkChecksums.read(in);
+            out.writeUTF("FILE_RECEIVED");
+
+            SegmentedDownload repairer = new SegmentedDownload(fileName, 1);
+            try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+                if (!repairer.verifyAndRepair(raf.getChannel(), fileSize, expected, actualCrcs)) {
+                    System.out.println("Verification failed; data kept in " + partFile.getName() + ".");
+                    return;
+                }
+            }
+
+            Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            double duration = Math.max((System.currentTimeMillis() - startTime) / 1000.0, 0.001);
+            System.out.println("Download complete and verified (" + actualCrcs.length + " chunks)! File saved to: " + outputFile.getAbsolutePath());
+            System.out.println("Time: " + String.format("%.2f", duration) + " seconds, Speed: " +
+                    formatFileSize((long) (fileSize / duration)) + "/s");
         } catch (IOException e) {
             System.out.println("Error downloading file: " + e.getMessage());
         }
     }
  
+    // Turns FILE:<n> into RESUME:<n>:<offset> when a partial copy of that file exists,
+    // and into a checksum-verified VERIFY:<n> otherwise
+    private String downloadRequestFor(String message) {
+        try {
+            int fileIndex = Integer.parseInt(message.substring(FILE_REQUEST_PREFIX.length()).trim());
+            String fileName = fileMap.get(fileIndex);
+            if (fileName == null) {
+                return message;
+            }
+            if (fileName.contains(" (")) {
+                fileName = fileName.substring(0, fileName.indexOf(" ("));
+            }
+            File partFile = new File(DOWNLOADS_DIR + File.separator + fileName + PART_SUFFIX);
+            long resumeFrom = partFile.isFile() ? partFile.length() : 0;
+            if (ChunkMap.fileFor(partFile).isFile()) {
+                // Left by a parallel download: only its leading run of written chunks is a
+                // prefix FILE: can append to, and the rest is dropped when it does
+                resumeFrom = ChunkMap.open(partFile, resumeFrom, CHUNK_SIZE).prefixLength();
+                System.out.println("Found partial parallel download of " + fileName + "; " + PARALLEL_REQUEST_PREFIX
+                        + fileIndex + " would keep all of it.");
+            }
+            if (resumeFrom > 0) {
+                System.out.println("Found partial download of " + fileName + " (" + formatFileSize(resumeFrom) + "), resuming.");
+                return RESUME_REQUEST_PREFIX + fileIndex + ":" + resumeFrom;
+            }
+            File existing = new File(DOWNLOADS_DIR + File.separator + fileName);
+            if (existing.isFile() && existing.length() > 0) {
+                System.out.println("Found an existing copy of " + fileName + "; requesting only what changed.");
+                return DELTA_REQUEST_PREFIX + fileIndex;
+            }
+            return VERIFY_REQUEST_PREFIX + fileIndex;
+        } catch (NumberFormatException e) {
+            // Let the server report the malformed request
+        }
+        return message;
+    }
+ 
     // Track the current file being requested
     private String lastRequest = "";
  
@@ -189,6 +773,10 @@ public class Client {
  
         System.out.println("Type '" + LIST_FILES_COMMAND + "' to see available files.");
         System.out.println("Type '" + FILE_REQUEST_PREFIX + "<filename>' to download a file.");
+        System.out.println("Type '" + PARALLEL_REQUEST_PREFIX + "<file number>[:<connections>]' to download over parallel connections.");
+        System.out.println("Type '" + COMPRESSED_REQUEST_PREFIX + "<file number>' to download with compression when the file allows it.");
+        System.out.println("Type '" + SWARM_REQUEST_PREFIX + "<file number>:<host:port>[,<host:port>...]' to download from several servers at once.");
+        System.out.println("Type '" + BATCH_REQUEST_PREFIX + "<numbers like 1,3-5 or a glob like *.txt>' to download many files at once.");
         System.out.println("Type '" + EXIT_COMMAND + "' to disconnect.");
  
         try {
@@ -200,12 +788,29 @@ public class Client {
                     out.writeUTF(EXIT_COMMAND);
                     isRunning = false;
                     break;
+                } else if (message.toUpperCase().startsWith(PARALLEL_REQUEST_PREFIX)) {
+                    // Runs on its own connections; nothing is sent on this one
+                    handleParallelDownload(message.substring(PARALLEL_REQUEST_PREFIX.length()).trim());
+                } else if (message.toUpperCase().startsWith(SWARM_REQUEST_PREFIX)) {
+                    // Also on connections of its own
+                    handleSwarmDownload(message.substring(SWARM_REQUEST_PREFIX.length()).trim());
+                } else if (message.toUpperCase().startsWith(COMPRESSED_REQUEST_PREFIX)) {
+                    String fileNumber = message.substring(COMPRESSED_REQUEST_PREFIX.length()).trim();
+                    lastRequest = FILE_REQUEST_PREFIX + fileNumber;
+                    out.writeUTF(COMPRESS_REQUEST_PREFIX + fileNumber);
                 } else {
                     // Store the request if it's a file request
                     if (message.toUpperCase().startsWith(FILE_REQUEST_PREFIX)) {
                         lastRequest = message;
+                        message = downloadRequestFor(message);
+                    }
+                    if (message.startsWith(DELTA_REQUEST_PREFIX)) {
+                        byte[] signature = blockSignature(new File(DOWNLOADS_DIR + File.separator + getCurrentRequestFileName()));
+                        out.writeUTF(message);
+                        out.write(signature);
+                    } else {
+                        out.writeUTF(message);
                     }
-                    out.writeUTF(message);
                 }
             }
         } catch (IOException e) {
@@ -244,4 +849,936 @@ public class Client {
             return String.format("%.2f GB", size / (1024.0 * 1024 * 1024));
         }
     }
+
+    // Splits a file into ranges and fetches them with SEGMENT requests over several
+    // connections at once, each writing its range straight to its position in a
+    // pre-allocated .part file. Workers pull ranges from a shared queue, so faster
+    // connections take more of them, and a range that fails goes back on the queue
+    // on its own (up to MAX_ATTEMPTS times) instead of restarting the whole file.
+    // Ranges are whole CHUNK_SIZE chunks, so each worker computes the chunk CRC32Cs as
+    // the data streams in; afterwards they are checked against the server's ChunkChecksums
+    // and any corrupted chunk is fetched again on its own.
+    // To try a high-latency link locally: tc qdisc add dev lo root netem delay 50ms
+    static class SegmentedDownload {
+        private static final long MAX_SEGMENT_SIZE = 8L * CHUNK_SIZE;
+        private static final int MAX_ATTEMPTS = 3;
+
+        private final String fileName;
+        private final int connections;
+        private final ConcurrentLinkedQueue<Segment> pending = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Segment> failed = new ConcurrentLinkedQueue<>();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicInteger retries = new AtomicInteger();
+        private int chunkSize = CHUNK_SIZE;
+        // CRC32C of each chunk as received; written by whichever worker fetched the chunk
+        private int[] actualCrcs;
+        private ChunkMap chunkMap;
+
+        SegmentedDownload(String fileName, int connections) {
+            this.fileName = fileName;
+            this.connections = connections;
+        }
+
+        void run() {
+            File outputFile = new File(DOWNLOADS_DIR + File.separator + fileName);
+            File partFile = new File(DOWNLOADS_DIR + File.separator + fileName + PART_SUFFIX);
+
+            long fileSize;
+            try (SegmentConnection probe = new SegmentConnection()) {
+                fileSize = probe.fetch(new Segment(0, 0), null);
+            } catch (IOException e) {
+                System.out.println("Parallel download failed: " + e.getMessage());
+                return;
+            }
+
+            // Enough ranges that every connection stays busy, but none larger than MAX_SEGMENT_SIZE.
+            // Only runs of chunks an earlier attempt didn't write are split into segments.
+            long segmentSize = Math.min(MAX_SEGMENT_SIZE, fileSize / (connections * 4L) + 1);
+            segmentSize = Math.max(1, (segmentSize + CHUNK_SIZE - 1) / CHUNK_SIZE) * CHUNK_SIZE;
+            int chunkCount = (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            actualCrcs = new int[chunkCount];
+            chunkMap = ChunkMap.open(partFile, fileSize, CHUNK_SIZE);
+            for (int chunk = 0; chunk < chunkCount; ) {
+                if (chunkMap.has(chunk)) {
+                    chunk++;
+                    continue;
+                }
+                int runEnd = chunk;
+                while (runEnd < chunkCount && !chunkMap.has(runEnd)) {
+                    runEnd++;
+                }
+                long runLimit = Math.min((long) runEnd * CHUNK_SIZE, fileSize);
+                for (long start = (long) chunk * CHUNK_SIZE; start < runLimit; start += segmentSize) {
+                    pending.add(new Segment(start, Math.min(segmentSize, runLimit - start)));
+                }
+                chunk = runEnd;
+            }
+            int segmentCount = pending.size();
+            int workerCount = Math.max(1, Math.min(connections, segmentCount));
+            int kept = chunkMap.count();
+            if (kept > 0) {
+                System.out.println("Resuming " + fileName + ": " + kept + " of " + chunkCount + " chunks are already here.");
+            }
+            System.out.println("Downloading " + fileName + " (" + formatFileSize(fileSize) + ") in " + segmentCount
+                    + " segments over " + workerCount + " connections...");
+
+            long startTime = System.nanoTime();
+            try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+                raf.setLength(fileSize);
+                FileChannel channel = raf.getChannel();
+                // Chunks kept from before are checked along with the new ones at the end
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    if (chunkMap.has(chunk)) {
+                        actualCrcs[chunk] = ChunkChecksums.computeCrc(channel, fileSize, CHUNK_SIZE, chunk);
+                        received.addAndGet(Math.min(CHUNK_SIZE, fileSize - (long) chunk * CHUNK_SIZE));
+                    }
+                }
+
+                List<Thread> workers = new ArrayList<>();
+                for (int i = 0; i < workerCount; i++) {
+                    Thread worker = new Thread(() -> work(channel), "segment-worker-" + (i + 1));
+                    worker.start();
+                    workers.add(worker);
+                }
+
+                int lastReported = 0;
+                for (Thread worker : workers) {
+                    while (worker.isAlive()) {
+                        worker.join(1000);
+                        int progress = fileSize == 0 ? 100 : (int) (received.get() * 100 / fileSize);
+                        if (progress / 20 > lastReported / 20) {
+                            System.out.println("Downloaded: " + progress + "% (" + formatFileSize(received.get()) + " / " + formatFileSize(fileSize) + ")");
+                            lastReported = progress;
+                        }
+                    }
+                }
+
+                if (!failed.isEmpty()) {
+                    System.out.println(failed.size() + " segments failed after " + MAX_ATTEMPTS + " attempts; " + chunkMap.count()
+                            + " of " + chunkCount + " chunks kept in " + partFile.getName() + ", repeat the download to fetch the rest.");
+                    return;
+                }
+
+                ChunkChecksums expected;
+                try (SegmentConnection connection = new SegmentConnection()) {
+                    expected = connection.fetchChecksums();
+                }
+                if (!verifyAndRepair(channel, fileSize, expected, actualCrcs)) {
+                    System.out.println("Verification failed; data kept in " + partFile.getName() + ".");
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("Parallel download failed: " + e.getMessage());
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.out.println("Could not rename " + partFile.getName() + ": " + e.getMessage());
+                return;
+            }
+            chunkMap.delete();
+            double seconds = Math.max((System.nanoTime() - startTime) / 1e9, 0.001);
+            System.out.println("Download complete! File saved to: " + outputFile.getAbsolutePath());
+            System.out.println("Time: " + String.format("%.2f", seconds) + " seconds, Speed: "
+                    + formatFileSize((long) (fileSize / seconds)) + "/s over " + workerCount
+                    + " connections (" + retries.get() + " segment retries)");
+        }
+
+        // Compares received chunks with the server's checksums and re-fetches mismatches,
+        // one chunk at a time, until everything matches or MAX_ATTEMPTS rounds have passed
+        boolean verifyAndRepair(FileChannel channel, long fileSize, ChunkChecksums expected, int[] received) throws IOException {
+            if (expected.fileSize != fileSize) {
+                System.out.println("File changed on the server during the download.");
+                return false;
+            }
+
+            actualCrcs = received;
+            if (expected.chunkSize != chunkSize) {
+                chunkSize = expected.chunkSize;
+                actualCrcs = ChunkChecksums.computeCrcs(channel, fileSize, chunkSize);
+            }
+
+            for (int round = 0; round < MAX_ATTEMPTS; round++) {
+                List<Integer> bad = expected.mismatchedChunks(actualCrcs);
+                if (bad.isEmpty()) {
+                    return true;
+                }
+                System.out.println(bad.size() + " of " + expected.crcs.length + " chunks failed verification; re-fetching only those.");
+
+                SegmentConnection connection = null;
+                try {
+                    for (int chunk : bad) {
+                        long start = (long) chunk * chunkSize;
+                        Segment segment = new Segment(start, Math.min(chunkSize, fileSize - start));
+                        if (connection == null) {
+                            connection = new SegmentConnection();
+                        }
+                        connection.fetch(segment, channel);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Chunk re-fetch failed: " + e.getMessage());
+                } finally {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+            }
+            return expected.mismatchedChunks(actualCrcs).isEmpty();
+        }
+
+        private void work(FileChannel channel) {
+            SegmentConnection connection = null;
+            Segment segment;
+            while ((segment = pending.poll()) != null) {
+                try {
+                    if (connection == null) {
+                        connection = new SegmentConnection();
+                    }
+                    connection.fetch(segment, channel);
+                    chunkMap.markRange(segment.start, segment.length);
+                } catch (IOException e) {
+                    // The stream may be out of sync now, so drop the connection as well
+                    if (connection != null) {
+                        connection.close();
+                        connection = null;
+                    }
+                    received.addAndGet(-segment.bytesDone);
+                    segment.bytesDone = 0;
+                    if (++segment.attempts < MAX_ATTEMPTS) {
+                        retries.incrementAndGet();
+                        System.out.println("Segment at " + segment.start + " failed (" + e.getMessage() + "), retrying.");
+                        pending.add(segment);
+                    } else {
+                        failed.add(segment);
+                    }
+                }
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        static class Segment {
+            final long start;
+            final long length;
+            int attempts = 0;
+            long bytesDone = 0;
+
+            Segment(long start, long length) {
+                this.start = start;
+                this.length = length;
+            }
+        }
+
+        class SegmentConnection implements AutoCloseable {
+            private final Socket socket;
+            private final DataInputStream in;
+            private final DataOutputStream out;
+            private final byte[] buffer = new byte[64 * 1024];
+
+            SegmentConnection() throws IOException {
+                socket = new Socket(SERVER_IP, SERVER_PORT);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), buffer.length));
+                out = new DataOutputStream(socket.getOutputStream());
+                in.readUTF(); // welcome message
+            }
+
+            // Fetches one range into the channel (if any) and returns the file size
+            long fetch(Segment segment, FileChannel channel) throws IOException {
+                out.writeUTF("SEGMENT:" + fileName + ":" + segment.start + ":" + segment.length);
+                String reply = in.readUTF();
+                if (!reply.equals("SEGMENT")) {
+                    throw new IOException(reply.equals("NOT_FOUND") ? "File not found on server" : reply);
+                }
+                long fileSize = in.readLong();
+                long start = in.readLong();
+                long length = in.readLong();
+                if (start != segment.start || length != segment.length) {
+                    // Still drain the bytes so the connection stays usable
+                    in.skipNBytes(length);
+                    throw new IOException("File changed on server during download");
+                }
+
+                // Segments start on a chunk boundary, so chunk checksums can be computed in-line
+                boolean checksummed = actualCrcs != null && start % chunkSize == 0;
+                CRC32C crc = new CRC32C();
+                int chunk = (int) (start / chunkSize);
+                long inChunk = 0;
+
+                long position = start;
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, Math.min(remaining, chunkSize - inChunk)));
+                    if (read == -1) {
+                        throw new EOFException("Connection closed mid-segment");
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+                    remaining -= read;
+                    segment.bytesDone += read;
+                    received.addAndGet(read);
+
+                    crc.update(buffer, 0, read);
+                    inChunk += read;
+                    if (inChunk == chunkSize || remaining == 0) {
+                        if (checksummed) {
+                            actualCrcs[chunk] = (int) crc.getValue();
+                        }
+                        chunk++;
+                        crc.reset();
+                        inChunk = 0;
+                    }
+                }
+                return fileSize;
+            }
+
+            ChunkChecksums fetchChecksums() throws IOException {
+                out.writeUTF("CHECKSUMS:" + fileName);
+                String reply = in.readUTF();
+                if (!reply.equals("CHECKSUMS")) {
+                    throw new IOException(reply.equals("NOT_FOUND") ? "File not found on server" : reply);
+                }
+                return ChunkChecksums.read(in);
+            }
+
+            @Override
+            public void close() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing left to clean up
+                }
+            }
+        }
+    }
+
+    // Which chunks of a full-size <name>.part have been written, saved as <name>.part.chunks
+    // after every change. The layout is that of a HAVE reply (file size, chunk size, chunk
+    // count, bitmap), so a FileTransferServer sharing the directory can serve it as is.
+    static class ChunkMap {
+        private final File file;
+        private final long fileSize;
+        private final int chunkSize;
+        private final int chunkCount;
+        private final byte[] bitmap;
+
+        private ChunkMap(File file, long fileSize, int chunkSize, int chunkCount, byte[] bitmap) {
+            this.file = file;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.bitmap = bitmap;
+        }
+
+        static File fileFor(File partFile) {
+            return new File(partFile.getPath() + CHUNKS_SUFFIX);
+        }
+
+        // The saved map, or an empty one when there is none or it describes a different file
+        static ChunkMap open(File partFile, long fileSize, int chunkSize) {
+            File file = fileFor(partFile);
+            int count = (int) ((fileSize + chunkSize - 1) / chunkSize);
+            byte[] bitmap = new byte[(count + 7) / 8];
+            if (file.isFile() && partFile.length() == fileSize) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    if (in.readLong() == fileSize && in.readInt() == chunkSize && in.readInt() == count) {
+                        in.readFully(bitmap);
+                    }
+                } catch (IOException e) {
+                    Arrays.fill(bitmap, (byte) 0);
+                }
+            }
+            return new ChunkMap(file, fileSize, chunkSize, count, bitmap);
+        }
+
+        // Drops the map of a .part that is about to be rewritten from the start
+        static void discard(File partFile) {
+            fileFor(partFile).delete();
+        }
+
+        synchronized boolean has(int chunk) {
+            return (bitmap[chunk / 8] & (1 << (chunk % 8))) != 0;
+        }
+
+        synchronized int count() {
+            int count = 0;
+            for (byte b : bitmap) {
+                count += Integer.bitCount(b & 0xFF);
+            }
+            return count;
+        }
+
+        // Bytes from the start of the file up to the first missing chunk
+        synchronized long prefixLength() {
+            int chunk = 0;
+            while (chunk < chunkCount && has(chunk)) {
+                chunk++;
+            }
+            return Math.min((long) chunk * chunkSize, fileSize);
+        }
+
+        // Marks every chunk that lies entirely inside the range
+        synchronized void markRange(long start, long length) {
+            long end = start + length;
+            int last = end == fileSize ? chunkCount : (int) (end / chunkSize);
+            for (int chunk = (int) ((start + chunkSize - 1) / chunkSize); chunk < last; chunk++) {
+                bitmap[chunk / 8] |= (byte) (1 << (chunk % 8));
+            }
+            save();
+        }
+
+        synchronized void clear(int chunk) {
+            bitmap[chunk / 8] &= (byte) ~(1 << (chunk % 8));
+            save();
+        }
+
+        void delete() {
+            file.delete();
+        }
+
+        // A map that fails to save only costs a resume, so the download carries on
+        private void save() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + bitmap.length);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(fileSize);
+                out.writeInt(chunkSize);
+                out.writeInt(chunkCount);
+                out.write(bitmap);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            try {
+                Files.write(file.toPath(), bytes.toByteArray());
+            } catch (IOException e) {
+                System.out.println("Could not record progress in " + file.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // The server's ChunkChecksums: file size, chunk size and a CRC32C per chunk. The list is
+    // taken as sent; only chunks are verified, by comparing it with CRCs computed here.
+    static class ChunkChecksums {
+        final long fileSize;
+        final int chunkSize;
+        final int[] crcs;
+
+        private ChunkChecksums(long fileSize, int chunkSize, int[] crcs) {
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.crcs = crcs;
+        }
+
+        static ChunkChecksums read(DataInputStream in) throws IOException {
+            long fileSize = in.readLong();
+            int chunkSize = in.readInt();
+            int count = in.readInt();
+            if (chunkSize <= 0 || count < 0 || count != (fileSize + chunkSize - 1) / chunkSize) {
+                throw new IOException("Malformed chunk checksums");
+            }
+            int[] crcs = new int[count];
+            for (int i = 0; i < count; i++) {
+                crcs[i] = in.readInt();
+            }
+            return new ChunkChecksums(fileSize, chunkSize, crcs);
+        }
+
+        List<Integer> mismatchedChunks(int[] actual) {
+            List<Integer> bad = new ArrayList<>();
+            for (int i = 0; i < crcs.length; i++) {
+                if (i >= actual.length || actual[i] != crcs[i]) {
+                    bad.add(i);
+                }
+            }
+            return bad;
+        }
+
+        static int[] computeCrcs(FileChannel channel, long fileSize, int chunkSize) throws IOException {
+            int[] crcs = new int[(int) ((fileSize + chunkSize - 1) / chunkSize)];
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            CRC32C crc = new CRC32C();
+            for (int chunk = 0; chunk < crcs.length; chunk++) {
+                crcs[chunk] = computeCrc(channel, fileSize, chunkSize, chunk, buffer, crc);
+            }
+            return crcs;
+        }
+
+        static int computeCrc(FileChannel channel, long fileSize, int chunkSize, int chunk) throws IOException {
+            return computeCrc(channel, fileSize, chunkSize, chunk, ByteBuffer.allocate(64 * 1024), new CRC32C());
+        }
+
+        private static int computeCrc(FileChannel channel, long fileSize, int chunkSize, int chunk, ByteBuffer buffer, CRC32C crc) throws IOException {
+            crc.reset();
+            long position = (long) chunk * chunkSize;
+            long end = Math.min(position + chunkSize, fileSize);
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException("Downloaded file is shorter than expected");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += read;
+            }
+            return (int) crc.getValue();
+        }
+    }
+
+    // Downloads one file from several FileTransferServer peers at once, one chunk per
+    // SEGMENT request. Each peer first says which chunks it holds (HAVE), and each peer's
+    // worker keeps taking the rarest chunk it can serve that nobody is fetching yet, so
+    // chunks few peers hold are secured first and faster peers simply end up with more
+    // chunks. Once nothing is left to hand out, an idle peer also fetches the chunk that has
+    // been in flight longest on a slower peer, and the first copy to arrive is kept. Every
+    // chunk's CRC32C is checked against the ChunkChecksums of a peer with the whole file; a bad
+    // chunk is fetched again from another peer, and a peer that sends two is dropped.
+    static class SwarmDownload {
+        private static final int CONNECT_TIMEOUT_MS = 3000;
+        private static final int READ_TIMEOUT_MS = 30000;
+        private static final int MAX_ROUNDS = 3;
+        private static final int MAX_BAD_CHUNKS = 2;
+
+        private final String fileName;
+        private final List<Peer> peers;
+        // The peers actually downloaded from: reachable and holding the same version
+        private final List<Peer> swarm = new ArrayList<>();
+        private final Random random = new Random();
+        // All of the following are guarded by this
+        private long fileSize;
+        private int chunkSize;
+        private int chunkCount;
+        private int[] availability;
+        private boolean[] done;
+        private boolean[] writing;
+        private int[] crcs;
+        private Peer[] servedBy;
+        private Peer[] excluded;
+        private int[] fetchers;
+        private long[] fetchStarted;
+        private int remaining;
+        private ChunkMap chunkMap;
+
+        SwarmDownload(String fileName, List<Peer> peers) {
+            this.fileName = fileName;
+            this.peers = peers;
+        }
+
+        static class Peer {
+            final String host;
+            final int port;
+            private Socket socket;
+            private DataInputStream in;
+            private DataOutputStream out;
+            private boolean[] has;
+            private boolean complete;
+            // As reported by HAVE; the size is -1 for a partial copy
+            private long fileSize;
+            private int chunkSize;
+            // SEGMENT name: the file itself, or <name>.part on a peer with a partial copy
+            private String remoteName;
+            private boolean dead;
+            private int badChunks;
+            private long bytes;
+            private long busyNanos;
+            private int chunksFetched;
+
+            Peer(String host, int port) {
+                this.host = host;
+                this.port = port;
+            }
+
+            @Override
+            public String toString() {
+                return host + ":" + port;
+            }
+
+            void close() {
+                try {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Nothing left to clean up
+                }
+            }
+        }
+
+        void run() {
+            List<Peer> usable = new ArrayList<>();
+            for (Peer peer : peers) {
+                try {
+                    askHave(peer);
+                    usable.add(peer);
+                } catch (IOException e) {
+                    System.out.println("Peer " + peer + " unavailable: " + e.getMessage());
+                    peer.close();
+                }
+            }
+
+            Peer reference = null;
+            for (Peer peer : usable) {
+                if (peer.complete) {
+                    reference = peer;
+                    break;
+                }
+            }
+            if (reference == null) {
+                System.out.println("No peer has the complete file, so its size and checksums are unknown.");
+                usable.forEach(Peer::close);
+                return;
+            }
+            fileSize = reference.fileSize;
+            chunkSize = reference.chunkSize;
+            chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+            for (Peer peer : usable) {
+                if (peer.chunkSize != chunkSize || (peer.complete && peer.fileSize != fileSize)) {
+                    System.out.println("Peer " + peer + " has a different version of " + fileName + "; not using it.");
+                    peer.close();
+                } else {
+                    swarm.add(peer);
+                }
+            }
+
+            availability = new int[chunkCount];
+            for (Peer peer : swarm) {
+                peer.has = Arrays.copyOf(peer.has, chunkCount);
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    if (peer.has[chunk]) {
+                        availability[chunk]++;
+                    }
+                }
+            }
+            done = new boolean[chunkCount];
+            writing = new boolean[chunkCount];
+            crcs = new int[chunkCount];
+            servedBy = new Peer[chunkCount];
+            excluded = new Peer[chunkCount];
+            fetchers = new int[chunkCount];
+            fetchStarted = new long[chunkCount];
+            remaining = chunkCount;
+
+            System.out.println("Swarm downloading " + fileName + " (" + formatFileSize(fileSize) + ", " + chunkCount
+                    + " chunks) from " + swarm.size() + " peers...");
+            File outputFile = new File(DOWNLOADS_DIR + File.separator + fileName);
+            File partFile = new File(DOWNLOADS_DIR + File.separator + fileName + PART_SUFFIX);
+            chunkMap = ChunkMap.open(partFile, fileSize, chunkSize);
+            long startTime = System.nanoTime();
+
+            try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+                raf.setLength(fileSize);
+                FileChannel channel = raf.getChannel();
+                // Chunks written by an earlier attempt count as done; verification rechecks them
+                synchronized (this) {
+                    for (int chunk = 0; chunk < chunkCount; chunk++) {
+                        if (chunkMap.has(chunk)) {
+                            crcs[chunk] = ChunkChecksums.computeCrc(channel, fileSize, chunkSize, chunk);
+                            done[chunk] = true;
+                            remaining--;
+                        }
+                    }
+                }
+                if (remaining < chunkCount) {
+                    System.out.println((chunkCount - remaining) + " chunks are already here from an earlier attempt.");
+                }
+
+                ChunkChecksums expected = null;
+                for (int round = 0; round < MAX_ROUNDS && remaining > 0; round++) {
+                    runWorkers(channel);
+                    if (remaining > 0) {
+                        System.out.println("Every peer failed with " + remaining + " chunks still missing; partial data kept in " + partFile.getName());
+                        return;
+                    }
+                    if (expected == null) {
+                        expected = fetchChecksums();
+                    }
+                    rejectBadChunks(expected);
+                }
+                if (remaining > 0) {
+                    System.out.println(remaining + " chunks still fail verification; partial data kept in " + partFile.getName());
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("Swarm download failed: " + e.getMessage());
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                swarm.forEach(Peer::close);
+            }
+
+            try {
+                Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.out.println("Could not save " + outputFile.getName() + ": " + e.getMessage());
+                return;
+            }
+            chunkMap.delete();
+            double duration = Math.max((System.nanoTime() - startTime) / 1e9, 0.001);
+            System.out.println("Download complete and verified! File saved to: " + outputFile.getAbsolutePath());
+            System.out.println("Time: " + String.format("%.2f", duration) + " seconds, Speed: " + formatFileSize((long) (fileSize / duration)) + "/s");
+            for (Peer peer : swarm) {
+                double busy = Math.max(peer.busyNanos / 1e9, 0.001);
+                System.out.println("  " + peer + ": " + peer.chunksFetched + " chunks, " + formatFileSize(peer.bytes)
+                        + " at " + formatFileSize((long) (peer.bytes / busy)) + "/s"
+                        + (peer.badChunks > 0 ? ", " + peer.badChunks + " bad" : "") + (peer.dead ? " (dropped)" : ""));
+            }
+        }
+
+        private void askHave(Peer peer) throws IOException {
+            peer.socket = new Socket();
+            peer.socket.connect(new InetSocketAddress(peer.host, peer.port), CONNECT_TIMEOUT_MS);
+            peer.socket.setSoTimeout(READ_TIMEOUT_MS);
+            peer.in = new DataInputStream(new BufferedInputStream(peer.socket.getInputStream(), 64 * 1024));
+            peer.out = new DataOutputStream(peer.socket.getOutputStream());
+            peer.in.readUTF(); // welcome message
+
+            peer.out.writeUTF("HAVE:" + fileName);
+            String reply = peer.in.readUTF();
+            if (!reply.equals("HAVE")) {
+                throw new IOException(reply.equals("NOT_FOUND") ? "doesn't have " + fileName : reply);
+            }
+            long size = peer.in.readLong();
+            int peerChunkSize = peer.in.readInt();
+            int count = peer.in.readInt();
+            byte[] bitmap = new byte[(count + 7) / 8];
+            peer.in.readFully(bitmap);
+            peer.has = new boolean[count];
+            for (int chunk = 0; chunk < count; chunk++) {
+                peer.has[chunk] = (bitmap[chunk / 8] & (1 << (chunk % 8))) != 0;
+            }
+            peer.complete = size >= 0;
+            peer.remoteName = peer.complete ? fileName : fileName + PART_SUFFIX;
+            peer.fileSize = size;
+            peer.chunkSize = peerChunkSize;
+        }
+
+        private void runWorkers(FileChannel channel) throws InterruptedException {
+            List<Thread> workers = new ArrayList<>();
+            for (Peer peer : swarm) {
+                if (peer.dead) {
+                    continue;
+                }
+                Thread worker = new Thread(() -> work(peer, channel), "swarm-" + peer);
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+
+        private void work(Peer peer, FileChannel channel) {
+            byte[] data = new byte[chunkSize];
+            CRC32C crc = new CRC32C();
+            int chunk;
+            while ((chunk = claim(peer)) >= 0) {
+                long start = (long) chunk * chunkSize;
+                int length = (int) Math.min(chunkSize, fileSize - start);
+                long began = System.nanoTime();
+                try {
+                    peer.out.writeUTF("SEGMENT:" + peer.remoteName + ":" + start + ":" + length);
+                    String reply = peer.in.readUTF();
+                    if (!reply.equals("SEGMENT")) {
+                        throw new IOException(reply);
+                    }
+                    peer.in.readLong(); // the peer's file size; a partial copy reports its own length
+                    long replyStart = peer.in.readLong();
+                    long replyLength = peer.in.readLong();
+                    if (replyStart != start || replyLength != length) {
+                        throw new IOException("sent a different range than asked for");
+                    }
+                    peer.in.readFully(data, 0, length);
+                } catch (IOException e) {
+                    System.out.println("Peer " + peer + " failed: " + e.getMessage() + "; its chunks go to the other peers.");
+                    release(chunk, peer, true);
+                    peer.close();
+                    return;
+                }
+                crc.reset();
+                crc.update(data, 0, length);
+                complete(chunk, peer, data, length, (int) crc.getValue(), channel, System.nanoTime() - began);
+            }
+        }
+
+        // The rarest unclaimed chunk this peer holds (ties broken at random so peers with the
+        // same chunks spread out), else the longest-running chunk on another peer, else -1
+        // once everything is done. Waits while the only remaining chunks are being fetched
+        // by others and haven't been running long enough to be worth duplicating.
+        private synchronized int claim(Peer peer) {
+            while (remaining > 0) {
+                int best = -1;
+                int ties = 0;
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    if (done[chunk] || fetchers[chunk] > 0 || !peer.has[chunk] || excluded[chunk] == peer) {
+                        continue;
+                    }
+                    if (best < 0 || availability[chunk] < availability[best]) {
+                        best = chunk;
+                        ties = 1;
+                    } else if (availability[chunk] == availability[best] && random.nextInt(++ties) == 0) {
+                        best = chunk;
+                    }
+                }
+
+                if (best < 0) {
+                    // Endgame: help with whatever has been in flight longest
+                    long now = System.nanoTime();
+                    long ownChunkNanos = peer.chunksFetched > 0 ? peer.busyNanos / peer.chunksFetched : 0;
+                    for (int chunk = 0; chunk < chunkCount; chunk++) {
+                        if (!done[chunk] && fetchers[chunk] == 1 && peer.has[chunk] && excluded[chunk] != peer
+                                && now - fetchStarted[chunk] > 2 * ownChunkNanos
+                                && (best < 0 || fetchStarted[chunk] < fetchStarted[best])) {
+                            best = chunk;
+                        }
+                    }
+                }
+
+                if (best >= 0) {
+                    if (fetchers[best] == 0) {
+                        fetchStarted[best] = System.nanoTime();
+                    }
+                    fetchers[best]++;
+                    return best;
+                }
+                if (!anyoneCanFetch()) {
+                    return -1;
+                }
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        // Whether some live peer could still fetch a missing chunk
+        private boolean anyoneCanFetch() {
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                if (done[chunk]) {
+                    continue;
+                }
+                if (fetchers[chunk] > 0) {
+                    return true;
+                }
+                for (Peer peer : swarm) {
+                    if (!peer.dead && peer.has[chunk] && excluded[chunk] != peer) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private synchronized void release(int chunk, Peer peer, boolean peerFailed) {
+            fetchers[chunk]--;
+            if (peerFailed) {
+                drop(peer);
+            }
+            notifyAll();
+        }
+
+        // Stops using a peer; its chunks become that much rarer for everyone else
+        private synchronized void drop(Peer peer) {
+            if (peer.dead) {
+                return;
+            }
+            peer.dead = true;
+            for (int i = 0; i < chunkCount; i++) {
+                if (peer.has[i]) {
+                    availability[i]--;
+                }
+            }
+        }
+
+        // The first copy of a chunk to arrive is written; a duplicate from the endgame is dropped.
+        // The write itself happens outside the lock so other workers aren't held up by it.
+        private void complete(int chunk, Peer peer, byte[] data, int length, int crc, FileChannel channel, long nanos) {
+            boolean write;
+            synchronized (this) {
+                write = !done[chunk] && !writing[chunk];
+                writing[chunk] |= write;
+            }
+            boolean written = false;
+            if (write) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                    long position = (long) chunk * chunkSize;
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    written = true;
+                } catch (IOException e) {
+                    System.out.println("Could not write chunk " + chunk + ": " + e.getMessage());
+                }
+            }
+            synchronized (this) {
+                fetchers[chunk]--;
+                peer.busyNanos += nanos;
+                peer.chunksFetched++;
+                peer.bytes += length;
+                if (write) {
+                    writing[chunk] = false;
+                }
+                if (written) {
+                    done[chunk] = true;
+                    crcs[chunk] = crc;
+                    servedBy[chunk] = peer;
+                    remaining--;
+                    chunkMap.markRange((long) chunk * chunkSize, length);
+                }
+                notifyAll();
+            }
+        }
+
+        private ChunkChecksums fetchChecksums() throws IOException {
+            for (Peer peer : swarm) {
+                if (!peer.complete || peer.dead) {
+                    continue;
+                }
+                try {
+                    peer.out.writeUTF("CHECKSUMS:" + fileName);
+                    String reply = peer.in.readUTF();
+                    if (!reply.equals("CHECKSUMS")) {
+                        throw new IOException(reply);
+                    }
+                    ChunkChecksums checksums = ChunkChecksums.read(peer.in);
+                    if (checksums.fileSize == fileSize && checksums.chunkSize == chunkSize) {
+                        return checksums;
+                    }
+                } catch (IOException e) {
+                    drop(peer);
+                    peer.close();
+                }
+            }
+            throw new IOException("no peer could provide valid checksums");
+        }
+
+        // Marks chunks whose CRC doesn't match as missing again, to be fetched from another peer
+        private synchronized void rejectBadChunks(ChunkChecksums expected) {
+            for (int chunk : expected.mismatchedChunks(crcs)) {
+                Peer culprit = servedBy[chunk];
+                done[chunk] = false;
+                excluded[chunk] = culprit;
+                remaining++;
+                chunkMap.clear(chunk);
+                if (culprit != null && ++culprit.badChunks >= MAX_BAD_CHUNKS && !culprit.dead) {
+                    System.out.println("Peer " + culprit + " sent " + culprit.badChunks + " corrupted chunks; dropping it.");
+                    drop(culprit);
+                }
+            }
+            if (remaining > 0) {
+                System.out.println(remaining + " chunks failed verification; fetching them again from other peers.");
+            }
+        }
+    }
 }
\ No newline at end of file
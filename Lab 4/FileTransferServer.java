@@ -1,25 +1,93 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 public class FileTransferServer {
-    private static final int PORT = 22222;
+    private static final int DEFAULT_PORT = 22222;
+    private static int port = DEFAULT_PORT;
     private static final String EXIT_COMMAND = "EXIT";
     private static boolean serverRunning = true;
-    private static List<ClientHandler> clients = new ArrayList<>();
+    // Handlers add and remove themselves while the monitor thread iterates
+    private static List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    // Pending connections the OS queues for accept(); the default of 50 drops connection bursts
+    private static final int ACCEPT_BACKLOG = 1024;
     private static ServerSocket serverSocket;
+    // Wait this long after a directory change before rescanning, so a burst of events costs one rescan
+    private static final long WATCH_DEBOUNCE_MS = 100;
+    private static volatile FileListing fileListing;
+    private static volatile boolean watcherActive = false;
+    // Chunk checksums per file name, reused while the file's size and mtime are unchanged
+    private static final ConcurrentHashMap<String, ChunkChecksums> chunkChecksums = new ConcurrentHashMap<>();
+    private static final BandwidthScheduler scheduler = new BandwidthScheduler();
+    private static final long DEFAULT_CACHE_MB = 128;
+    private static final FileCache fileCache = new FileCache(DEFAULT_CACHE_MB * 1024 * 1024);
 
+    // Usage: java FileTransferServer [total bandwidth cap in MB/s] [file cache size in MB] [port]
+    // (several servers on one machine, e.g. as swarm peers, need a port each)
     public static void main(String[] args) {
+        if (args.length > 0) {
+            try {
+                scheduler.setCap((long) (Double.parseDouble(args[0]) * 1024 * 1024));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid bandwidth cap '" + args[0] + "'; serving without a cap.");
+            }
+        }
+        if (args.length > 1) {
+            try {
+                fileCache.setBudget(Long.parseLong(args[1]) * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid cache size '" + args[1] + "'; using " + DEFAULT_CACHE_MB + " MB.");
+            }
+        }
+        if (args.length > 2) {
+            try {
+                port = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid port '" + args[2] + "'; using " + DEFAULT_PORT + ".");
+            }
+        }
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("File Transfer Server Started on port " + PORT);
+            // Accepting through a channel gives every client socket a SocketChannel,
+            // which FileChannel.transferTo needs for the zero-copy send path
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverSocket = serverChannel.socket();
+            System.out.println("File Transfer Server Started on port " + port);
             System.out.println("Type '" + EXIT_COMMAND + "' to shut down the server");
             System.out.println("Files will be served from the current directory: " + new File(".").getAbsolutePath());
+            System.out.println("Bandwidth cap: " + scheduler.describeCap() + " (change with 'LIMIT <MB/s>', 0 for none)");
+            System.out.println("File cache: " + formatFileSize(fileCache.budget()) + " (change with 'CACHE <MB>', 0 to disable)");
 
+            startDirectoryWatcher();
             startServerMonitor();
 
             while (serverRunning) {
@@ -75,9 +143,42 @@ public class FileTransferServer {
                 } else if (command.equalsIgnoreCase("LIST")) {
                     listAvailableFiles();
                 } else if (command.equalsIgnoreCase("CLIENTS")) {
-                    System.out.println("Connected clients: " + clients.size());
-                    for (int i = 0; i < clients.size(); i++) {
-                        System.out.println((i + 1) + ". " + clients.get(i).clientAddress);
+                    List<ClientHandler> snapshot = new ArrayList<>(clients);
+                    System.out.println("Connected clients: " + snapshot.size() + ", bandwidth cap: " + scheduler.describeCap());
+                    for (int i = 0; i < snapshot.size(); i++) {
+                        TokenBucket bucket = snapshot.get(i).bucket;
+                        System.out.println((i + 1) + ". " + snapshot.get(i).clientAddress + " - " + formatFileSize(bucket.rate()) + "/s"
+                                + " (weight " + bucket.weight + (scheduler.isCapped() && bucket.isActive()
+                                        ? ", share " + formatFileSize(scheduler.shareFor(bucket)) + "/s" : "") + ")");
+                    }
+                    System.out.println(fileCache.report());
+                } else if (command.toUpperCase().startsWith("CACHE ")) {
+                    try {
+                        fileCache.setBudget(Long.parseLong(command.substring(6).trim()) * 1024 * 1024);
+                        System.out.println(fileCache.report());
+                    } catch (NumberFormatException e) {
+                        System.out.println("Usage: CACHE <MB> (0 disables the cache)");
+                    }
+                } else if (command.toUpperCase().startsWith("LIMIT ")) {
+                    try {
+                        scheduler.setCap((long) (Double.parseDouble(command.substring(6).trim()) * 1024 * 1024));
+                        System.out.println("Bandwidth cap: " + scheduler.describeCap());
+                    } catch (NumberFormatException e) {
+                        System.out.println("Usage: LIMIT <MB/s> (0 removes the cap)");
+                    }
+                } else if (command.toUpperCase().startsWith("WEIGHT ")) {
+                    String[] parts = command.substring(7).trim().split("\\s+");
+                    List<ClientHandler> snapshot = new ArrayList<>(clients);
+                    try {
+                        int clientNo = Integer.parseInt(parts[0]);
+                        int weight = Integer.parseInt(parts[1]);
+                        if (clientNo < 1 || clientNo > snapshot.size() || weight < 1) {
+                            throw new NumberFormatException();
+                        }
+                        snapshot.get(clientNo - 1).bucket.weight = weight;
+                        System.out.println("Client " + snapshot.get(clientNo - 1).clientAddress + " now has weight " + weight);
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        System.out.println("Usage: WEIGHT <client number from CLIENTS> <weight of at least 1>");
                     }
                 }
             }
@@ -88,27 +189,65 @@ public class FileTransferServer {
     }
     
     private static void listAvailableFiles() {
-        File directory = new File(".");  // Current directory
-        File[] files = directory.listFiles();
+        FileListing listing = currentListing();
         
-        if (files == null || files.length == 0) {
-            System.out.println("No files available in the current directory.");
+        if (listing.entries.isEmpty()) {
+            System.out.println("No files found in the current directory.");
             return;
         }
         
-        System.out.println("\nAvailable files:");
-        int count = 0;
-        for (File file : files) {
-            if (file.isFile()) {
-                count++;
-                System.out.println(count + ". " + file.getName() + " (" + formatFileSize(file.length()) + ")");
-            }
+        System.out.println("\nAvailable files (listing version " + listing.version + "):");
+        for (int i = 0; i < listing.entries.size(); i++) {
+            System.out.println((i + 1) + ". " + listing.entries.get(i).display);
         }
-        
-        if (count == 0) {
-            System.out.println("No files found in the current directory.");
+    }
+
+    private static void startDirectoryWatcher() {
+        rebuildListing();
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            Paths.get(".").register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watcherActive = true;
+
+            Thread watcherThread = new Thread(() -> {
+                while (serverRunning) {
+                    try {
+                        WatchKey key = watcher.take();
+                        Thread.sleep(WATCH_DEBOUNCE_MS);
+                        // Which files changed doesn't matter, any event (including OVERFLOW) means rescan
+                        key.pollEvents();
+                        if (!key.reset()) {
+                            watcherActive = false;
+                            System.out.println("Directory is no longer watchable; file list will be rebuilt on every request.");
+                            return;
+                        }
+                        rebuildListing();
+                    } catch (InterruptedException | ClosedWatchServiceException e) {
+                        watcherActive = false;
+                        return;
+                    }
+                }
+            }, "directory-watcher");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Directory watching unavailable (" + e.getMessage() + "); file list will be rebuilt on every request.");
         }
     }
+
+    private static synchronized void rebuildListing() {
+        FileListing previous = fileListing;
+        fileListing = FileListing.scan(new File("."), previous == null ? 1 : previous.version + 1);
+    }
+
+    // Without a working watcher the cached snapshot could be stale, so rescan instead
+    private static FileListing currentListing() {
+        if (!watcherActive) {
+            rebuildListing();
+        }
+        return fileListing;
+    }
     
     private static String formatFileSize(long size) {
         if (size < 1024) {
@@ -151,24 +290,627 @@ public class FileTransferServer {
     public static synchronized void removeClient(ClientHandler client) {
         if (client != null && clients.contains(client)) {
             clients.remove(client);
+            scheduler.unregister(client.bucket);
             System.out.println("Client " + client.clientAddress + " disconnected. Current client count: " + clients.size());
         }
     }
     
-    private static List<String> getAvailableFiles() {
-        List<String> fileList = new ArrayList<>();
-        File directory = new File(".");  
-        
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    fileList.add(file.getName() + " (" + formatFileSize(file.length()) + ")");
+    // Returns a plain file from the served directory, or null for paths and missing files
+    private static File servedFile(String fileName) {
+        if (fileName.isEmpty() || fileName.contains("/") || fileName.contains("\\") || fileName.contains("..")) {
+            return null;
+        }
+        File file = new File(fileName);
+        return file.isFile() ? file : null;
+    }
+
+    private static ChunkChecksums cachedChecksums(File file) {
+        ChunkChecksums checksums = chunkChecksums.get(file.getName());
+        return checksums != null && checksums.matches(file) ? checksums : null;
+    }
+
+    private static ChunkChecksums checksumsFor(File file) throws IOException {
+        ChunkChecksums checksums = cachedChecksums(file);
+        if (checksums == null) {
+            checksums = ChunkChecksums.compute(file);
+            cacheChecksums(file, checksums);
+        }
+        return checksums;
+    }
+
+    // Only keep checksums if the file didn't change while it was being checksummed
+    private static void cacheChecksums(File file, ChunkChecksums checksums) {
+        if (checksums.matches(file)) {
+            chunkChecksums.put(file.getName(), checksums);
+        }
+    }
+
+    // CRC32C of every CHUNK_SIZE chunk of a file. Verification is per chunk only: the
+    // receiver compares this list with checksums of what it got and fetches the chunks that
+    // differ again. Nothing authenticates the list itself, it comes over the same connection.
+    // Wire format: file size, chunk size, chunk count, one int per chunk.
+    static final class ChunkChecksums {
+        static final int CHUNK_SIZE = 1024 * 1024;
+
+        final long fileSize;
+        final long lastModified;
+        final int[] crcs;
+
+        ChunkChecksums(long fileSize, long lastModified, int[] crcs) {
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.crcs = crcs;
+        }
+
+        static int chunkCount(long fileSize) {
+            return (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+
+        static ChunkChecksums compute(File file) throws IOException {
+            long lastModified = file.lastModified();
+            long fileSize = file.length();
+            int[] crcs = new int[chunkCount(fileSize)];
+            try (FileInputStream fileIn = new FileInputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                CRC32C crc = new CRC32C();
+                for (int chunk = 0; chunk < crcs.length; chunk++) {
+                    crc.reset();
+                    long remaining = Math.min(CHUNK_SIZE, fileSize - (long) chunk * CHUNK_SIZE);
+                    while (remaining > 0) {
+                        int read = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new IOException("File '" + file.getName() + "' changed while computing checksums");
+                        }
+                        crc.update(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    crcs[chunk] = (int) crc.getValue();
                 }
             }
+            return new ChunkChecksums(fileSize, lastModified, crcs);
+        }
+
+        boolean matches(File file) {
+            return file.length() == fileSize && file.lastModified() == lastModified;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + crcs.length * 4);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeLong(fileSize);
+            data.writeInt(CHUNK_SIZE);
+            data.writeInt(crcs.length);
+            for (int crc : crcs) {
+                data.writeInt(crc);
+            }
+            bytes.writeTo(out);
+            out.flush();
+        }
+    }
+
+    // Block checksums of the copy a client already has, sent with a DELTA request:
+    // old file size, block size, block count, then per block a rolling checksum and an
+    // MD5. The last block is shorter when the size isn't a multiple of the block size.
+    static final class BlockSignature {
+        private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+        private static final int MAX_BLOCKS = 1 << 22;
+
+        final long oldSize;
+        final int blockSize;
+        final int count;
+        private final byte[][] strong;
+        // Rolling checksum -> blocks with that checksum; collisions are settled by the MD5
+        private final HashMap<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+
+        private BlockSignature(long oldSize, int blockSize, int[] weak, byte[][] strong) {
+            this.oldSize = oldSize;
+            this.blockSize = blockSize;
+            this.count = weak.length;
+            this.strong = strong;
+            for (int i = 0; i < weak.length; i++) {
+                blocksByChecksum.computeIfAbsent(weak[i], k -> new ArrayList<>(1)).add(i);
+            }
+        }
+
+        // Keeps at most as many blocks as a file of newSize could reference (none when newSize
+        // is negative), so the allocation follows the served file rather than the client's
+        // claim; the rest of the signature is skipped to keep the stream in step.
+        static BlockSignature read(DataInputStream in, long newSize) throws IOException {
+            long oldSize = in.readLong();
+            int blockSize = in.readInt();
+            int count = in.readInt();
+            if (oldSize < 0 || blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || count < 0 || count > MAX_BLOCKS
+                    || count != (oldSize + blockSize - 1) / blockSize) {
+                throw new IOException("Malformed block signature");
+            }
+            int kept = newSize < 0 ? 0 : (int) Math.min(count, newSize / blockSize + 1);
+            int[] weak = new int[kept];
+            byte[][] strong = new byte[kept][16];
+            for (int i = 0; i < kept; i++) {
+                weak[i] = in.readInt();
+                in.readFully(strong[i]);
+            }
+            in.skipNBytes((long) (count - kept) * 20);
+            return new BlockSignature(oldSize, blockSize, weak, strong);
+        }
+
+        int blockLength(int block) {
+            return (int) Math.min(blockSize, oldSize - (long) block * blockSize);
+        }
+
+        // Index of a block of the old copy holding exactly these bytes, or -1
+        int find(int checksum, byte[] data, int offset, int length, MessageDigest md5) {
+            List<Integer> candidates = blocksByChecksum.get(checksum);
+            if (candidates == null) {
+                return -1;
+            }
+            md5.reset();
+            md5.update(data, offset, length);
+            byte[] hash = md5.digest();
+            for (int block : candidates) {
+                if (blockLength(block) == length && MessageDigest.isEqual(hash, strong[block])) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        // rsync's weak checksum: a = sum of the bytes, b = sum of a over each prefix, both
+        // mod 2^16. Sliding the window one byte only needs the byte leaving and the one entering.
+        static int checksum(int a, int b) {
+            return (a & 0xFFFF) | (b << 16);
+        }
+    }
+
+    // Shares a server-wide bandwidth cap between clients. Each handler sends through its
+    // own TokenBucket, refilled at cap * weight / (total weight of the clients currently
+    // sending), so a bulk download can't starve other clients and a newly started small
+    // download gets its share, and its initial burst, straight away instead of queueing.
+    // Clients that haven't sent for ACTIVE_WINDOW_NANOS don't count towards the total.
+    // A client that is slower than its share leaves the difference unused.
+    static final class BandwidthScheduler {
+        private static final long ACTIVE_WINDOW_NANOS = 500_000_000L;
+        // How long the summed weight of active clients is reused before being recomputed
+        private static final long WEIGHT_REFRESH_NANOS = 50_000_000L;
+
+        private final List<TokenBucket> buckets = new CopyOnWriteArrayList<>();
+        private volatile long capBytesPerSecond = 0;
+        private volatile long activeWeight = 0;
+        private volatile long activeWeightAt = 0;
+
+        TokenBucket register() {
+            TokenBucket bucket = new TokenBucket(this);
+            buckets.add(bucket);
+            return bucket;
+        }
+
+        void unregister(TokenBucket bucket) {
+            buckets.remove(bucket);
+        }
+
+        void setCap(long bytesPerSecond) {
+            capBytesPerSecond = Math.max(0, bytesPerSecond);
+        }
+
+        boolean isCapped() {
+            return capBytesPerSecond > 0;
+        }
+
+        String describeCap() {
+            return isCapped() ? formatFileSize(capBytesPerSecond) + "/s" : "none";
+        }
+
+        long shareFor(TokenBucket bucket) {
+            long now = System.nanoTime();
+            long total = activeWeight;
+            if (now - activeWeightAt > WEIGHT_REFRESH_NANOS) {
+                total = 0;
+                for (TokenBucket other : buckets) {
+                    if (other.isActive(now)) {
+                        total += other.weight;
+                    }
+                }
+                activeWeight = total;
+                activeWeightAt = now;
+            }
+            // A bucket that just woke up may not be in the cached total yet
+            total = Math.max(total, bucket.weight);
+            return Math.max(1, capBytesPerSecond * bucket.weight / total);
+        }
+    }
+
+    // Tokens are bytes. Sending is accounted after the fact, so the balance may go negative
+    // and the sender then sleeps until it's paid back; capacity is a tenth of a second at
+    // the current share, but never less than MIN_BURST so small files leave in one go.
+    // The handler thread does nearly all the sending, but closeConnection also writes the
+    // shutdown notice from the monitor thread, so the balance and the rate window are only
+    // touched under the bucket's lock. Waiting for tokens happens outside it.
+    static final class TokenBucket {
+        private static final long MIN_BURST = 256 * 1024;
+        private static final long MAX_SLEEP_MS = 100;
+        private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+        private final BandwidthScheduler scheduler;
+        volatile int weight = 1;
+        private double tokens = MIN_BURST;
+        private long lastRefill = System.nanoTime();
+        private volatile long lastActive = 0;
+        private long windowStart = System.nanoTime();
+        private long windowBytes = 0;
+        private volatile long lastRate = 0;
+
+        TokenBucket(BandwidthScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        void acquire(long bytes) throws InterruptedIOException {
+            long sleepMs;
+            synchronized (this) {
+                long now = System.nanoTime();
+                lastActive = now;
+                recordSent(bytes, now);
+                if (!scheduler.isCapped()) {
+                    return;
+                }
+                refill(now);
+                tokens -= bytes;
+                sleepMs = debtSleepMs();
+            }
+
+            while (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    lastActive = now;
+                    refill(now);
+                    sleepMs = debtSleepMs();
+                }
+            }
+        }
+
+        // How long to wait before the negative balance is paid back; zero when it isn't negative
+        private long debtSleepMs() {
+            if (tokens >= 0 || !scheduler.isCapped()) {
+                return 0;
+            }
+            long share = scheduler.shareFor(this);
+            return Math.min(MAX_SLEEP_MS, Math.max(1, (long) (-tokens * 1000 / share)));
+        }
+
+        private void refill(long now) {
+            long share = scheduler.shareFor(this);
+            double capacity = Math.max(MIN_BURST, share / 10.0);
+            tokens = Math.min(capacity, tokens + share * ((now - lastRefill) / 1e9));
+            lastRefill = now;
+        }
+
+        private void recordSent(long bytes, long now) {
+            windowBytes += bytes;
+            long elapsed = now - windowStart;
+            if (elapsed >= RATE_WINDOW_NANOS) {
+                lastRate = (long) (windowBytes * 1e9 / elapsed);
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+
+        boolean isActive() {
+            return isActive(System.nanoTime());
+        }
+
+        boolean isActive(long now) {
+            return lastActive != 0 && now - lastActive < BandwidthScheduler.ACTIVE_WINDOW_NANOS;
+        }
+
+        // Bytes per second over the last full window; zero once the client has gone quiet
+        long rate() {
+            return System.nanoTime() - lastActive > 2 * RATE_WINDOW_NANOS ? 0 : lastRate;
+        }
+    }
+
+    // Charges every byte written to the client against its TokenBucket, in slices so a
+    // large write is spread out rather than sent in one burst followed by a long pause
+    static final class ThrottledOutputStream extends FilterOutputStream {
+        private static final int SLICE = 64 * 1024;
+        private final TokenBucket bucket;
+
+        ThrottledOutputStream(OutputStream out, TokenBucket bucket) {
+            super(out);
+            this.bucket = bucket;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            bucket.acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int slice = Math.min(SLICE, len);
+                bucket.acquire(slice);
+                out.write(b, off, slice);
+                off += slice;
+                len -= slice;
+            }
+        }
+    }
+
+    // Keeps the contents of popular files in direct buffers, within a byte budget, so a hit
+    // goes from memory to the socket without touching the disk. Admission and eviction are
+    // TinyLFU-style: a FrequencySketch estimates how often each file was requested lately,
+    // and a file only gets in by evicting files that are requested less often than it is,
+    // so one pass over many cold files can't flush the hot ones. An entry is dropped as soon
+    // as a lookup sees the file's size or mtime change. Direct buffers rather than mapped
+    // regions: a mapped file truncated underneath us faults on access instead of looking stale.
+    // Only whole-file requests load a file, one at a time per file; concurrent misses and
+    // range requests are served from disk meanwhile.
+    static final class FileCache {
+        // One file may take at most this fraction of the budget
+        private static final int MAX_ENTRY_FRACTION = 4;
+
+        private final ConcurrentHashMap<String, CachedFile> entries = new ConcurrentHashMap<>();
+        // Files whose contents a request is reading into a buffer right now
+        private final Set<String> loading = ConcurrentHashMap.newKeySet();
+        private final FrequencySketch sketch = new FrequencySketch();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder bytesServed = new LongAdder();
+        // Both guarded by this
+        private long budget;
+        private long used = 0;
+
+        FileCache(long budget) {
+            this.budget = budget;
+        }
+
+        // The file's contents as a buffer of its own (position 0, limit the file size), or
+        // null when it isn't cached and wasn't admitted on this miss. Only a lookup that may
+        // admit loads the file on a miss.
+        ByteBuffer get(File file, boolean mayAdmit) throws IOException {
+            String key = file.getName();
+            sketch.increment(key);
+            CachedFile cached = entries.get(key);
+            if (cached != null) {
+                if (cached.size == file.length() && cached.lastModified == file.lastModified()) {
+                    hits.increment();
+                    return cached.data.duplicate();
+                }
+                remove(key, cached);
+            }
+            misses.increment();
+            return mayAdmit ? admit(key, file) : null;
+        }
+
+        void recordServed(long bytes) {
+            bytesServed.add(bytes);
+        }
+
+        synchronized long budget() {
+            return budget;
+        }
+
+        synchronized void setBudget(long budget) {
+            this.budget = Math.max(0, budget);
+            while (used > this.budget) {
+                CachedFile victim = coldestEntry();
+                remove(victim.name, victim);
+            }
+        }
+
+        String report() {
+            long hitCount = hits.sum();
+            long lookups = hitCount + misses.sum();
+            long budgetNow;
+            long usedNow;
+            synchronized (this) {
+                budgetNow = budget;
+                usedNow = used;
+            }
+            return "File cache: " + entries.size() + " files, " + formatFileSize(usedNow) + " of " + formatFileSize(budgetNow)
+                    + String.format(", hit rate %.1f%% (%d of %d lookups), ", lookups == 0 ? 0.0 : hitCount * 100.0 / lookups, hitCount, lookups)
+                    + formatFileSize(bytesServed.sum()) + " served from cache";
+        }
+
+        private ByteBuffer admit(String key, File file) throws IOException {
+            long size = file.length();
+            long lastModified = file.lastModified();
+            int frequency = sketch.frequency(key);
+            // Check there is room before reading the file, then again once it's loaded
+            if (size == 0 || !makeRoom(key, size, frequency, false)) {
+                return null;
+            }
+            // Another request is already loading this file; it's cached once that finishes
+            if (!loading.add(key)) {
+                return null;
+            }
+
+            try {
+                ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+                try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                    while (data.hasRemaining()) {
+                        if (channel.read(data, data.position()) < 0) {
+                            return null;
+                        }
+                    }
+                }
+                if (file.length() != size || file.lastModified() != lastModified) {
+                    return null;
+                }
+                data.flip();
+
+                synchronized (this) {
+                    if (entries.containsKey(key) || !makeRoom(key, size, frequency, true)) {
+                        return null;
+                    }
+                    CachedFile cached = new CachedFile(key, size, lastModified, data.asReadOnlyBuffer());
+                    entries.put(key, cached);
+                    used += size;
+                    return cached.data.duplicate();
+                }
+            } finally {
+                loading.remove(key);
+            }
+        }
+
+        // Picks victims in order of increasing frequency; fails rather than evict anything
+        // the candidate isn't requested more often than
+        private synchronized boolean makeRoom(String key, long size, int frequency, boolean evict) {
+            if (size > budget / MAX_ENTRY_FRACTION || size > Integer.MAX_VALUE) {
+                return false;
+            }
+            List<CachedFile> byFrequency = new ArrayList<>(entries.values());
+            byFrequency.sort(Comparator.comparingInt(entry -> sketch.frequency(entry.name)));
+            List<CachedFile> victims = new ArrayList<>();
+            long free = budget - used;
+            for (CachedFile entry : byFrequency) {
+                if (free >= size) {
+                    break;
+                }
+                if (entry.name.equals(key) || sketch.frequency(entry.name) >= frequency) {
+                    return false;
+                }
+                victims.add(entry);
+                free += entry.size;
+            }
+            if (free < size) {
+                return false;
+            }
+            if (evict) {
+                for (CachedFile victim : victims) {
+                    remove(victim.name, victim);
+                }
+            }
+            return true;
+        }
+
+        private synchronized CachedFile coldestEntry() {
+            CachedFile coldest = null;
+            for (CachedFile entry : entries.values()) {
+                if (coldest == null || sketch.frequency(entry.name) < sketch.frequency(coldest.name)) {
+                    coldest = entry;
+                }
+            }
+            return coldest;
+        }
+
+        private synchronized void remove(String key, CachedFile entry) {
+            if (entries.remove(key, entry)) {
+                used -= entry.size;
+            }
+        }
+    }
+
+    static final class CachedFile {
+        final String name;
+        final long size;
+        final long lastModified;
+        final ByteBuffer data;
+
+        CachedFile(String name, long size, long lastModified, ByteBuffer data) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+
+    // Count-min sketch of recent request counts: DEPTH rows of 4-bit-style counters (capped
+    // at MAX_COUNT), read as the minimum over the rows. Every SAMPLE_SIZE increments all
+    // counters are halved, so files that were popular a while ago fade out.
+    static final class FrequencySketch {
+        private static final int WIDTH = 1 << 12;
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int SAMPLE_SIZE = WIDTH * 10;
+        private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+        private final byte[][] counts = new byte[DEPTH][WIDTH];
+        private int additions = 0;
+
+        synchronized void increment(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(hash, row);
+                if (counts[row][index] < MAX_COUNT) {
+                    counts[row][index]++;
+                }
+            }
+            if (++additions >= SAMPLE_SIZE) {
+                for (byte[] row : counts) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        synchronized int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counts[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private static int index(int hash, int row) {
+            int mixed = (hash ^ SEEDS[row]) * 0x9E3779B1;
+            return (mixed ^ (mixed >>> 16)) & (WIDTH - 1);
+        }
+    }
+
+    // Immutable snapshot of the served directory, shared by every handler. It is only
+    // rebuilt when the directory changes, so LIST_FILES costs the same however often
+    // clients ask, and every client that listed the same snapshot sees the same numbers.
+    static final class FileListing {
+        final long version;
+        final List<Entry> entries;
+
+        private FileListing(long version, List<Entry> entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+
+        static FileListing scan(File directory, long version) {
+            List<Entry> entries = new ArrayList<>();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        entries.add(new Entry(file.getName(), file.length(), file.lastModified()));
+                    }
+                }
+            }
+            entries.sort(Comparator.comparing(entry -> entry.name));
+            return new FileListing(version, Collections.unmodifiableList(entries));
+        }
+
+        // File numbers are 1-based, as shown to clients; null when out of range
+        Entry get(int fileNo) {
+            return fileNo >= 1 && fileNo <= entries.size() ? entries.get(fileNo - 1) : null;
+        }
+
+        static final class Entry {
+            final String name;
+            final long size;
+            final long lastModified;
+            final String display;
+
+            Entry(String name, long size, long lastModified) {
+                this.name = name;
+                this.size = size;
+                this.lastModified = lastModified;
+                this.display = name + " (" + formatFileSize(size) + ")";
+            }
         }
-        
-        return fileList;
     }
 
     static class ClientHandler extends Thread {
@@ -177,16 +919,59 @@ public class FileTransferServer {
         private DataInputStream in;
         private boolean isRunning = true;
         private String clientAddress;
+        private final TokenBucket bucket = scheduler.register();
         private static final String FILE_REQUEST = "FILE:";
         private static final String LIST_FILES_REQUEST = "LIST_FILES";
+        // RESUME:<file number>:<offset> asks for the bytes of a file from offset onwards
+        private static final String RESUME_REQUEST = "RESUME:";
+        // SEGMENT:<file name>:<start>:<length> sends one byte range without an acknowledgment;
+        // parallel downloads open several connections and fetch one range at a time on each
+        private static final String SEGMENT_REQUEST = "SEGMENT:";
+        // VERIFY:<file number> is FILE: followed by the file's ChunkChecksums after the data
+        private static final String VERIFY_REQUEST = "VERIFY:";
+        // CHECKSUMS:<file name> sends just the ChunkChecksums, e.g. to check a parallel download
+        private static final String CHECKSUMS_REQUEST = "CHECKSUMS:";
+        // COMPRESS:<file number> sends the file as deflated blocks if a sample of it compresses
+        private static final String COMPRESS_REQUEST = "COMPRESS:";
+        // DELTA:<file number>, followed by the BlockSignature of the client's old copy. The
+        // reply rebuilds the current file from COPY ops (runs of old blocks) and LITERAL ops
+        // (new bytes), ended by DELTA_END and the SHA-256 of the result.
+        private static final String DELTA_REQUEST = "DELTA:";
+        private static final int DELTA_END = 0;
+        private static final int DELTA_COPY = 1;
+        private static final int DELTA_LITERAL = 2;
+        private static final int MAX_LITERAL = 64 * 1024;
+        // BATCH:<numbers and ranges, e.g. 1,4,7-9> or BATCH:<glob, e.g. *.csv> sends many files
+        // in one stream: BATCH and the file count, then per file true, name, size, the bytes
+        // and their CRC32C, then false, with a single FILE_RECEIVED for the whole batch
+        private static final String BATCH_REQUEST = "BATCH:";
+        private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+        // HAVE:<file name> tells a swarm client which CHUNK_SIZE chunks can be fetched
+        // from here with SEGMENT: HAVE, the file size (-1 when only a partial copy is here),
+        // chunk size, chunk count and a bitmap of the chunks held. A partial copy is the
+        // <name>.part left by an interrupted download, fetched as SEGMENT:<name>.part. After
+        // FILE: it holds a prefix of the file; a parallel or swarm download preallocates it
+        // and lists the chunks written so far in <name>.part.chunks, which is sent as is.
+        private static final String HAVE_REQUEST = "HAVE:";
+        private static final int COMPRESSION_BLOCK_SIZE = 256 * 1024;
+        // Blocks deflated from the start of the file to decide whether compressing is worth it
+        private static final int COMPRESSION_SAMPLE_BLOCKS = 4;
+        // Compress only when the sample shrinks to at most this fraction of its size
+        private static final double COMPRESSIBLE_RATIO = 0.9;
+        // Deflated blocks allowed to wait for the socket before the compressor blocks
+        private static final int COMPRESSION_QUEUE_DEPTH = 4;
         private static final int BUFFER_SIZE = 4096;
+        // Bytes handed to the kernel per transferTo call; also the progress reporting step
+        private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+        // transferTo step while a bandwidth cap is set, so the bucket is charged in small bites
+        private static final long THROTTLED_TRANSFER_SIZE = 256 * 1024;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
             this.clientAddress = socket.getInetAddress() + ":" + socket.getPort();
 
             try {
-                this.out = new DataOutputStream(socket.getOutputStream());
+                this.out = new DataOutputStream(new ThrottledOutputStream(socket.getOutputStream(), bucket));
                 this.in = new DataInputStream(socket.getInputStream());
             } catch (IOException e) {
                 System.out.println("Error setting up streams for client: " + e.getMessage());
@@ -210,13 +995,91 @@ public class FileTransferServer {
                             handleFileListRequest();
                         } else if (message.startsWith(FILE_REQUEST)) {
                             String fileSelected = message.substring(FILE_REQUEST.length()).trim();
-                            int fileNo= Integer.parseInt(fileSelected);
-                            if(fileNo < 1 || fileNo > client_fileList.size()){
+                            FileListing.Entry entry = null;
+                            try {
+                                entry = listedFile(Integer.parseInt(fileSelected));
+                            } catch (NumberFormatException e) {
+                                // Reported below as an invalid number
+                            }
+                            if (entry == null) {
+                                out.writeUTF("Invalid file number. Please try again.");
+                                continue;
+                            }
+                            handleFileRequest(entry.name);
+                        } else if (message.startsWith(RESUME_REQUEST)) {
+                            String[] parts = message.substring(RESUME_REQUEST.length()).trim().split(":");
+                            int fileNo;
+                            long offset;
+                            try {
+                                fileNo = Integer.parseInt(parts[0].trim());
+                                offset = parts.length > 1 ? Long.parseLong(parts[1].trim()) : 0;
+                            } catch (NumberFormatException e) {
+                                out.writeUTF("Invalid resume request. Use RESUME:<file number>:<offset>");
+                                continue;
+                            }
+                            FileListing.Entry entry = listedFile(fileNo);
+                            if (entry == null) {
                                 out.writeUTF("Invalid file number. Please try again.");
                                 continue;
                             }
-                            String fileName = client_fileList.get(fileNo);
-                            handleFileRequest(fileName);
+                            handleFileRequest(entry.name, offset);
+                        } else if (message.startsWith(VERIFY_REQUEST)) {
+                            FileListing.Entry entry = null;
+                            try {
+                                entry = listedFile(Integer.parseInt(message.substring(VERIFY_REQUEST.length()).trim()));
+                            } catch (NumberFormatException e) {
+                                // Reported below as an invalid number
+                            }
+                            if (entry == null) {
+                                out.writeUTF("Invalid file number. Please try again.");
+                                continue;
+                            }
+                            handleVerifiedFileRequest(entry.name);
+                        } else if (message.startsWith(COMPRESS_REQUEST)) {
+                            FileListing.Entry entry = null;
+                            try {
+                                entry = listedFile(Integer.parseInt(message.substring(COMPRESS_REQUEST.length()).trim()));
+                            } catch (NumberFormatException e) {
+                                // Reported below as an invalid number
+                            }
+                            if (entry == null) {
+                                out.writeUTF("Invalid file number. Please try again.");
+                                continue;
+                            }
+                            handleCompressedFileRequest(entry.name);
+                        } else if (message.startsWith(HAVE_REQUEST)) {
+                            handleHaveRequest(message.substring(HAVE_REQUEST.length()));
+                        } else if (message.startsWith(BATCH_REQUEST)) {
+                            List<FileListing.Entry> entries = resolveBatch(message.substring(BATCH_REQUEST.length()).trim());
+                            if (entries == null) {
+                                out.writeUTF("Invalid batch request. Use BATCH:<numbers like 1,3-5> or BATCH:<glob like *.txt>");
+                                continue;
+                            }
+                            handleBatchRequest(entries);
+                        } else if (message.startsWith(DELTA_REQUEST)) {
+                            FileListing.Entry entry = null;
+                            try {
+                                entry = listedFile(Integer.parseInt(message.substring(DELTA_REQUEST.length()).trim()));
+                            } catch (NumberFormatException e) {
+                                // Reported below as an invalid number
+                            }
+                            // The signature follows the request line, so it is read even if the number is bad
+                            BlockSignature signature = BlockSignature.read(in, entry != null ? entry.size : -1);
+                            if (entry == null) {
+                                out.writeUTF("Invalid file number. Please try again.");
+                                continue;
+                            }
+                            handleDeltaRequest(entry.name, signature);
+                        } else if (message.startsWith(SEGMENT_REQUEST)) {
+                            handleSegmentRequest(message.substring(SEGMENT_REQUEST.length()));
+                        } else if (message.startsWith(CHECKSUMS_REQUEST)) {
+                            File file = servedFile(message.substring(CHECKSUMS_REQUEST.length()));
+                            if (file == null) {
+                                out.writeUTF("NOT_FOUND");
+                                continue;
+                            }
+                            out.writeUTF("CHECKSUMS");
+                            checksumsFor(file).writeTo(out);
                         } else {
                             out.writeUTF("Message received: " + message);
                         }
@@ -234,22 +1097,26 @@ public class FileTransferServer {
                 removeClient(this);
             }
         }
-        HashMap<Integer, String> client_fileList = new HashMap<>();
+        // The snapshot this client was last shown; file numbers it sends refer to it
+        private FileListing listedFiles;
+
+        private FileListing.Entry listedFile(int fileNo) {
+            return listedFiles == null ? null : listedFiles.get(fileNo);
+        }
+
         private void handleFileListRequest() {
             try {
-                List<String> fileList = getAvailableFiles();
-                System.out.println("Client " + clientAddress + " requested file list. Sending " + fileList.size() + " files.");
+                FileListing listing = currentListing();
+                System.out.println("Client " + clientAddress + " requested file list. Sending " + listing.entries.size() + " files.");
                 
                 // Send the number of files
                 out.writeUTF("FILE_LIST");
-                out.writeInt(fileList.size());
-                int i=1;
+                out.writeInt(listing.entries.size());
                 // Send each file name
-                for (String fileName : fileList) {
-                    out.writeUTF(fileName);
-                    client_fileList.put(i, fileName);
-                    i++;
+                for (FileListing.Entry entry : listing.entries) {
+                    out.writeUTF(entry.display);
                 }
+                listedFiles = listing;
                 
                 System.out.println("File list sent to client " + clientAddress);
             } catch (IOException e) {
@@ -274,40 +1141,43 @@ public class FileTransferServer {
         }
 
         private void handleFileRequest(String fileName) {
+            handleFileRequest(fileName, -1);
+        }
+
+        // A negative offset sends the whole file (FOUND). Otherwise the reply is FOUND_RANGE,
+        // the file size, the offset actually used and the remaining bytes, followed by the
+        // SHA-256 of the whole file so the client can verify the joined result.
+        private void handleFileRequest(String fileName, long offset) {
             try {
-                System.out.println("Client " + clientAddress + " requested file: " + fileName);
-                
-                // Extract just the filename without the size information
-                if (fileName.contains(" (")) {
-                    fileName = fileName.substring(0, fileName.indexOf(" ("));
-                }
+                System.out.println("Client " + clientAddress + " requested file: " + fileName
+                        + (offset >= 0 ? " from offset " + offset : ""));
+
 
                 File file = new File(fileName);  // File in current directory
 
                 if (file.exists() && file.isFile()) {
-                    out.writeUTF("FOUND");
                     long fileSize = file.length();
+                    boolean ranged = offset >= 0;
+                    if (offset > fileSize) {
+                        // The client's partial copy is longer than the file, so it must be stale
+                        offset = 0;
+                    }
+                    long start = ranged ? offset : 0;
+
+                    out.writeUTF(ranged ? "FOUND_RANGE" : "FOUND");
                     out.writeLong(fileSize);
+                    if (ranged) {
+                        out.writeLong(start);
+                    }
                     out.flush();
 
-                    try (FileInputStream fileIn = new FileInputStream(file)) {
-                        byte[] buffer = new byte[BUFFER_SIZE];
-                        int bytesRead;
-                        long totalSent = 0;
-                        
-                        while ((bytesRead = fileIn.read(buffer)) != -1) {
-                            out.write(buffer, 0, bytesRead);
-                            totalSent += bytesRead;
-                            
-                            if (fileSize > 1024 * 1024 && totalSent % (1024 * 1024) == 0) {
-                                System.out.println("Sent " + formatFileSize(totalSent) + " of " + 
-                                                  formatFileSize(fileSize) + " to client " + clientAddress);
-                            }
-                        }
-                        out.flush();
+                    sendFileRange(file, start, fileSize, true);
+                    if (ranged) {
+                        out.writeUTF(computeSha256(file));
                     }
 
-                    System.out.println("File '" + fileName + "' (" + formatFileSize(fileSize) + ") sent to client " + clientAddress);
+                    System.out.println("File '" + fileName + "' (" + formatFileSize(fileSize - start)
+                            + (start > 0 ? " resumed at " + formatFileSize(start) : "") + ") sent to client " + clientAddress);
 
                     try {
                         String ack = in.readUTF();
@@ -326,5 +1196,739 @@ public class FileTransferServer {
                 System.out.println("Error handling file request: " + e.getMessage());
             }
         }
+
+        // Reply: FOUND_VERIFIED, file size, the data, then the ChunkChecksums. Cached checksums
+        // let the data go out zero-copy; otherwise they are computed from the very bytes being
+        // sent and cached for the next download of the unchanged file.
+        private void handleVerifiedFileRequest(String fileName) throws IOException {
+            System.out.println("Client " + clientAddress + " requested verified file: " + fileName);
+            File file = servedFile(fileName);
+            if (file == null) {
+                out.writeUTF("NOT_FOUND");
+                System.out.println("File '" + fileName + "' not found for client " + clientAddress);
+                return;
+            }
+
+            ChunkChecksums checksums = cachedChecksums(file);
+            long fileSize = checksums != null ? checksums.fileSize : file.length();
+            long lastModified = file.lastModified();
+            out.writeUTF("FOUND_VERIFIED");
+            out.writeLong(fileSize);
+            out.flush();
+
+            if (checksums != null) {
+                sendFileRange(file, 0, fileSize, true);
+            } else {
+                checksums = new ChunkChecksums(fileSize, lastModified, sendFileWithChecksums(file, fileSize));
+                cacheChecksums(file, checksums);
+            }
+            checksums.writeTo(out);
+            System.out.println("File '" + fileName + "' (" + formatFileSize(fileSize) + ", " + checksums.crcs.length
+                    + " checksummed chunks) sent to client " + clientAddress);
+
+            try {
+                String ack = in.readUTF();
+                if ("FILE_RECEIVED".equals(ack)) {
+                    System.out.println("Client " + clientAddress + " acknowledged file receipt.");
+                }
+            } catch (IOException e) {
+                System.out.println("Client disconnected before acknowledgment: " + e.getMessage());
+                throw e;
+            }
+        }
+
+        private int[] sendFileWithChecksums(File file, long fileSize) throws IOException {
+            int[] crcs = new int[ChunkChecksums.chunkCount(fileSize)];
+            try (FileInputStream fileIn = new FileInputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                CRC32C crc = new CRC32C();
+                long totalSent = 0;
+                for (int chunk = 0; chunk < crcs.length; chunk++) {
+                    crc.reset();
+                    long remaining = Math.min(ChunkChecksums.CHUNK_SIZE, fileSize - totalSent);
+                    while (remaining > 0) {
+                        int read = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new IOException("File '" + file.getName() + "' changed during transfer");
+                        }
+                        crc.update(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                        totalSent += read;
+                    }
+                    crcs[chunk] = (int) crc.getValue();
+
+                    if (fileSize > 1024 * 1024 && totalSent % TRANSFER_CHUNK_SIZE == 0) {
+                        System.out.println("Sent " + formatFileSize(totalSent) + " of " +
+                                          formatFileSize(fileSize) + " to client " + clientAddress);
+                    }
+                }
+                out.flush();
+            }
+            return crcs;
+        }
+
+        // Reply: FOUND_COMPRESSED, file size, and whether the data is compressed. Uncompressed
+        // data follows as-is (zero-copy); compressed data follows as blocks of
+        // [raw length, stored length, CRC32C of the raw bytes, stored bytes], ending with a
+        // zero raw length. A block whose deflated form isn't smaller is stored raw, which
+        // the client sees as stored length == raw length.
+        private void handleCompressedFileRequest(String fileName) throws IOException {
+            System.out.println("Client " + clientAddress + " requested compressed file: " + fileName);
+            File file = servedFile(fileName);
+            if (file == null) {
+                out.writeUTF("NOT_FOUND");
+                System.out.println("File '" + fileName + "' not found for client " + clientAddress);
+                return;
+            }
+
+            long fileSize = file.length();
+            boolean compress = isCompressible(file);
+            out.writeUTF("FOUND_COMPRESSED");
+            out.writeLong(fileSize);
+            out.writeBoolean(compress);
+            out.flush();
+
+            if (compress) {
+                long wireBytes = sendFileCompressed(file, fileSize);
+                System.out.println("File '" + fileName + "' (" + formatFileSize(fileSize) + ") sent compressed to client "
+                        + clientAddress + " as " + formatFileSize(wireBytes)
+                        + String.format(" (%.1f%% of original)", fileSize == 0 ? 100.0 : wireBytes * 100.0 / fileSize));
+            } else {
+                sendFileRange(file, 0, fileSize, true);
+                System.out.println("File '" + fileName + "' (" + formatFileSize(fileSize) + ") doesn't compress; sent uncompressed to client " + clientAddress);
+            }
+
+            try {
+                String ack = in.readUTF();
+                if ("FILE_RECEIVED".equals(ack)) {
+                    System.out.println("Client " + clientAddress + " acknowledged file receipt.");
+                }
+            } catch (IOException e) {
+                System.out.println("Client disconnected before acknowledgment: " + e.getMessage());
+                throw e;
+            }
+        }
+
+        // Deflates the first few blocks; images, archives and other already-compressed
+        // data barely shrink, so they go out uncompressed and skip the CPU cost
+        private static boolean isCompressible(File file) throws IOException {
+            byte[] block = new byte[COMPRESSION_BLOCK_SIZE];
+            byte[] deflated = new byte[COMPRESSION_BLOCK_SIZE];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            long sampled = 0;
+            long compressed = 0;
+            try (FileInputStream fileIn = new FileInputStream(file)) {
+                for (int i = 0; i < COMPRESSION_SAMPLE_BLOCKS; i++) {
+                    int length = fileIn.readNBytes(block, 0, block.length);
+                    if (length == 0) {
+                        break;
+                    }
+                    sampled += length;
+                    compressed += deflateBlock(deflater, block, length, deflated);
+                }
+            } finally {
+                deflater.end();
+            }
+            return sampled > 0 && compressed <= sampled * COMPRESSIBLE_RATIO;
+        }
+
+        // Returns the deflated size, or the raw length if deflating doesn't make the block smaller
+        private static int deflateBlock(Deflater deflater, byte[] block, int length, byte[] deflated) {
+            deflater.reset();
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished() && size < length) {
+                size += deflater.deflate(deflated, size, Math.min(deflated.length, length) - size);
+            }
+            return deflater.finished() && size < length ? size : length;
+        }
+
+        private static final class CompressedBlock {
+            static final CompressedBlock END = new CompressedBlock(null, 0, 0, 0);
+
+            final byte[] data;
+            final int rawLength;
+            final int storedLength;
+            final int crc;
+
+            CompressedBlock(byte[] data, int rawLength, int storedLength, int crc) {
+                this.data = data;
+                this.rawLength = rawLength;
+                this.storedLength = storedLength;
+                this.crc = crc;
+            }
+        }
+
+        // A compressor thread reads and deflates blocks into a bounded queue while this
+        // thread writes finished blocks to the socket, so compression and network I/O
+        // overlap instead of taking turns. Returns the bytes sent for the data.
+        private long sendFileCompressed(File file, long fileSize) throws IOException {
+            BlockingQueue<CompressedBlock> queue = new ArrayBlockingQueue<>(COMPRESSION_QUEUE_DEPTH);
+            IOException[] failure = new IOException[1];
+
+            Thread compressor = new Thread(() -> {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                CRC32C crc = new CRC32C();
+                try (FileInputStream fileIn = new FileInputStream(file)) {
+                    long remaining = fileSize;
+                    while (remaining > 0) {
+                        byte[] block = new byte[(int) Math.min(COMPRESSION_BLOCK_SIZE, remaining)];
+                        int length = fileIn.readNBytes(block, 0, block.length);
+                        if (length < block.length) {
+                            throw new IOException("File '" + file.getName() + "' changed during transfer");
+                        }
+                        crc.reset();
+                        crc.update(block, 0, length);
+                        byte[] deflated = new byte[length];
+                        int stored = deflateBlock(deflater, block, length, deflated);
+                        queue.put(new CompressedBlock(stored < length ? deflated : block, length, stored, (int) crc.getValue()));
+                        remaining -= length;
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                } catch (InterruptedException e) {
+                    // The sender gave up; nothing left to do
+                    return;
+                } finally {
+                    deflater.end();
+                }
+                try {
+                    queue.put(CompressedBlock.END);
+                } catch (InterruptedException e) {
+                    // The sender gave up
+                }
+            }, "compressor-" + clientAddress);
+            compressor.setDaemon(true);
+            compressor.start();
+
+            long wireBytes = 0;
+            long totalSent = 0;
+            try {
+                while (true) {
+                    CompressedBlock block = queue.take();
+                    if (block == CompressedBlock.END) {
+                        break;
+                    }
+                    out.writeInt(block.rawLength);
+                    out.writeInt(block.storedLength);
+                    out.writeInt(block.crc);
+                    out.write(block.data, 0, block.storedLength);
+                    wireBytes += 12 + block.storedLength;
+                    totalSent += block.rawLength;
+
+                    if (fileSize > 1024 * 1024 && totalSent % TRANSFER_CHUNK_SIZE == 0) {
+                        System.out.println("Sent " + formatFileSize(totalSent) + " of " +
+                                          formatFileSize(fileSize) + " to client " + clientAddress);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending '" + file.getName() + "'", e);
+            } finally {
+                compressor.interrupt();
+            }
+            // A block stream can't be cut short, so a read failure ends with a zero-length
+            // block too and the client finds the file incomplete
+            out.writeInt(0);
+            out.flush();
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            return wireBytes;
+        }
+
+        // Reply: FOUND_DELTA, file size, block size, the delta ops, then the file's SHA-256
+        private void handleDeltaRequest(String fileName, BlockSignature signature) throws IOException {
+            System.out.println("Client " + clientAddress + " requested delta for file: " + fileName + " ("
+                    + signature.count + " blocks of " + formatFileSize(signature.blockSize) + " held locally)");
+            File file = servedFile(fileName);
+            if (file == null) {
+                out.writeUTF("NOT_FOUND");
+                System.out.println("File '" + fileName + "' not found for client " + clientAddress);
+                return;
+            }
+
+            long fileSize = file.length();
+            out.writeUTF("FOUND_DELTA");
+            out.writeLong(fileSize);
+            out.writeInt(signature.blockSize);
+
+            MessageDigest sha256;
+            MessageDigest md5;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Delta hashes not supported", e);
+            }
+            long literalBytes = new DeltaEncoder(signature, sha256, md5).encode(file);
+            out.writeUTF(toHex(sha256.digest()));
+            out.flush();
+            System.out.println("Delta for '" + fileName + "' (" + formatFileSize(fileSize) + ") sent to client " + clientAddress
+                    + ": " + formatFileSize(literalBytes) + " of new data, the rest reused from the client's copy");
+
+            try {
+                String ack = in.readUTF();
+                if ("FILE_RECEIVED".equals(ack)) {
+                    System.out.println("Client " + clientAddress + " acknowledged file receipt.");
+                }
+            } catch (IOException e) {
+                System.out.println("Client disconnected before acknowledgment: " + e.getMessage());
+                throw e;
+            }
+        }
+
+        // Slides a block-sized window over the file one byte at a time. Wherever the window's
+        // rolling checksum and MD5 match a block of the client's copy, that block is referenced
+        // instead of sent; bytes in between go out as literals. Consecutive block references
+        // are merged, so an unchanged stretch of any length costs one COPY op.
+        private final class DeltaEncoder {
+            private final BlockSignature signature;
+            private final MessageDigest sha256;
+            private final MessageDigest md5;
+            private int copyStart = -1;
+            private int copyCount = 0;
+            private long literalBytes = 0;
+
+            DeltaEncoder(BlockSignature signature, MessageDigest sha256, MessageDigest md5) {
+                this.signature = signature;
+                this.sha256 = sha256;
+                this.md5 = md5;
+            }
+
+            long encode(File file) throws IOException {
+                int blockSize = signature.blockSize;
+                byte[] buffer = new byte[Math.max(4 * blockSize, 1024 * 1024)];
+                int limit = 0;
+                int position = 0;
+                int literalStart = 0;
+                boolean eof = false;
+                boolean rolling = false;
+                int a = 0;
+                int b = 0;
+
+                try (FileInputStream fileIn = new FileInputStream(file)) {
+                    while (true) {
+                        if (limit - position < blockSize && !eof) {
+                            // Keep the pending literal and the partial window, refill behind them
+                            System.arraycopy(buffer, literalStart, buffer, 0, limit - literalStart);
+                            limit -= literalStart;
+                            position -= literalStart;
+                            literalStart = 0;
+                            int read = fileIn.readNBytes(buffer, limit, buffer.length - limit);
+                            sha256.update(buffer, limit, read);
+                            limit += read;
+                            eof = limit < buffer.length;
+                            continue;
+                        }
+
+                        if (limit - position < blockSize) {
+                            // The tail can only match the old copy's final, shorter block
+                            int tail = signature.count > 0 ? signature.blockLength(signature.count - 1) : 0;
+                            if (tail > 0 && tail < blockSize && tail <= limit - position) {
+                                int tailStart = limit - tail;
+                                int ta = 0;
+                                int tb = 0;
+                                for (int i = 0; i < tail; i++) {
+                                    ta += buffer[tailStart + i] & 0xFF;
+                                    tb += (tail - i) * (buffer[tailStart + i] & 0xFF);
+                                }
+                                int block = signature.find(BlockSignature.checksum(ta, tb), buffer, tailStart, tail, md5);
+                                if (block >= 0) {
+                                    writeLiteral(buffer, literalStart, tailStart - literalStart);
+                                    addCopy(block);
+                                    literalStart = limit;
+                                }
+                            }
+                            writeLiteral(buffer, literalStart, limit - literalStart);
+                            break;
+                        }
+
+                        if (!rolling) {
+                            a = 0;
+                            b = 0;
+                            for (int i = 0; i < blockSize; i++) {
+                                a += buffer[position + i] & 0xFF;
+                                b += (blockSize - i) * (buffer[position + i] & 0xFF);
+                            }
+                            rolling = true;
+                        }
+
+                        int block = signature.find(BlockSignature.checksum(a, b), buffer, position, blockSize, md5);
+                        if (block >= 0) {
+                            writeLiteral(buffer, literalStart, position - literalStart);
+                            addCopy(block);
+                            position += blockSize;
+                            literalStart = position;
+                            rolling = false;
+                            continue;
+                        }
+
+                        int leaving = buffer[position] & 0xFF;
+                        position++;
+                        if (position + blockSize <= limit) {
+                            a = (a - leaving + (buffer[position + blockSize - 1] & 0xFF)) & 0xFFFF;
+                            b = (b - blockSize * leaving + a) & 0xFFFF;
+                        } else {
+                            rolling = false;
+                        }
+                        if (position - literalStart >= MAX_LITERAL) {
+                            writeLiteral(buffer, literalStart, position - literalStart);
+                            literalStart = position;
+                        }
+                    }
+                }
+                flushCopy();
+                out.writeByte(DELTA_END);
+                return literalBytes;
+            }
+
+            private void addCopy(int block) throws IOException {
+                if (copyCount > 0 && copyStart + copyCount == block) {
+                    copyCount++;
+                    return;
+                }
+                flushCopy();
+                copyStart = block;
+                copyCount = 1;
+            }
+
+            private void flushCopy() throws IOException {
+                if (copyCount > 0) {
+                    out.writeByte(DELTA_COPY);
+                    out.writeInt(copyStart);
+                    out.writeInt(copyCount);
+                    copyCount = 0;
+                }
+            }
+
+            private void writeLiteral(byte[] data, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return;
+                }
+                flushCopy();
+                out.writeByte(DELTA_LITERAL);
+                out.writeInt(length);
+                out.write(data, offset, length);
+                literalBytes += length;
+            }
+        }
+
+        private void handleHaveRequest(String fileName) throws IOException {
+            File file = servedFile(fileName);
+            File partial = file == null ? servedFile(fileName + ".part") : null;
+            if (file == null && partial == null) {
+                out.writeUTF("NOT_FOUND");
+                return;
+            }
+
+            int chunkSize = ChunkChecksums.CHUNK_SIZE;
+            long fileSize = file != null ? file.length() : -1;
+            byte[] bitmap = partial != null ? readChunkMap(partial) : null;
+            int count;
+            if (bitmap != null) {
+                count = ChunkChecksums.chunkCount(partial.length());
+            } else {
+                // Only whole chunks of a prefix count; the last one may still be growing
+                count = file != null ? ChunkChecksums.chunkCount(fileSize) : (int) (partial.length() / chunkSize);
+                bitmap = new byte[(count + 7) / 8];
+                for (int chunk = 0; chunk < count; chunk++) {
+                    bitmap[chunk / 8] |= (byte) (1 << (chunk % 8));
+                }
+            }
+
+            out.writeUTF("HAVE");
+            out.writeLong(fileSize);
+            out.writeInt(chunkSize);
+            out.writeInt(count);
+            out.write(bitmap);
+            out.flush();
+            System.out.println("Client " + clientAddress + " asked which chunks of '" + fileName + "' are here: "
+                    + (file != null ? "all " + count : held(bitmap) + " of " + count + " from a partial copy"));
+        }
+
+        private static int held(byte[] bitmap) {
+            int held = 0;
+            for (byte b : bitmap) {
+                held += Integer.bitCount(b & 0xFF);
+            }
+            return held;
+        }
+
+        // The chunk bitmap a parallel download keeps next to a preallocated <name>.part, or
+        // null when there is none or it doesn't describe this file with CHUNK_SIZE chunks
+        private byte[] readChunkMap(File partial) {
+            File mapFile = servedFile(partial.getName() + ".chunks");
+            if (mapFile == null) {
+                return null;
+            }
+            try (DataInputStream mapIn = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)))) {
+                long size = mapIn.readLong();
+                int chunkSize = mapIn.readInt();
+                int count = mapIn.readInt();
+                if (size != partial.length() || chunkSize != ChunkChecksums.CHUNK_SIZE || count != ChunkChecksums.chunkCount(size)) {
+                    return null;
+                }
+                byte[] bitmap = new byte[(count + 7) / 8];
+                mapIn.readFully(bitmap);
+                return bitmap;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        // Numbers refer to the listing this client last saw; a glob matches against the current one
+        private List<FileListing.Entry> resolveBatch(String spec) {
+            LinkedHashMap<String, FileListing.Entry> selected = new LinkedHashMap<>();
+            if (spec.isEmpty()) {
+                return null;
+            }
+            if (spec.contains("*") || spec.contains("?") || spec.contains("[") || spec.contains("{")) {
+                PathMatcher matcher;
+                try {
+                    matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                for (FileListing.Entry entry : currentListing().entries) {
+                    if (matcher.matches(Paths.get(entry.name))) {
+                        selected.put(entry.name, entry);
+                    }
+                }
+                return new ArrayList<>(selected.values());
+            }
+
+            try {
+                for (String part : spec.split(",")) {
+                    String[] range = part.trim().split("-");
+                    int first = Integer.parseInt(range[0].trim());
+                    int last = range.length > 1 ? Integer.parseInt(range[1].trim()) : first;
+                    if (range.length > 2 || last < first) {
+                        return null;
+                    }
+                    for (int fileNo = first; fileNo <= last; fileNo++) {
+                        FileListing.Entry entry = listedFile(fileNo);
+                        if (entry == null) {
+                            return null;
+                        }
+                        selected.put(entry.name, entry);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return new ArrayList<>(selected.values());
+        }
+
+        // The whole batch goes through one buffer, so headers and small files are coalesced
+        // into full-size writes and there is no round trip per file
+        private void handleBatchRequest(List<FileListing.Entry> entries) throws IOException {
+            System.out.println("Client " + clientAddress + " requested a batch of " + entries.size() + " files");
+            out.writeUTF("BATCH");
+            out.writeInt(entries.size());
+
+            DataOutputStream batchOut = new DataOutputStream(new BufferedOutputStream(out, BATCH_BUFFER_SIZE));
+            byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+            CRC32C crc = new CRC32C();
+            int sentFiles = 0;
+            long sentBytes = 0;
+            for (FileListing.Entry entry : entries) {
+                File file = servedFile(entry.name);
+                if (file == null) {
+                    continue;
+                }
+                FileInputStream fileIn;
+                try {
+                    fileIn = new FileInputStream(file);
+                } catch (FileNotFoundException e) {
+                    // Deleted since it was listed; the client only gets the files that exist
+                    continue;
+                }
+                try (fileIn) {
+                    long size = file.length();
+                    batchOut.writeBoolean(true);
+                    batchOut.writeUTF(entry.name);
+                    batchOut.writeLong(size);
+                    crc.reset();
+                    long remaining = size;
+                    while (remaining > 0) {
+                        int read = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new IOException("File '" + entry.name + "' changed during transfer");
+                        }
+                        batchOut.write(buffer, 0, read);
+                        crc.update(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    batchOut.writeInt((int) crc.getValue());
+                    sentFiles++;
+                    sentBytes += size;
+                }
+            }
+            batchOut.writeBoolean(false);
+            batchOut.flush();
+            System.out.println("Batch of " + sentFiles + " files (" + formatFileSize(sentBytes) + ") sent to client " + clientAddress);
+
+            try {
+                String ack = in.readUTF();
+                if ("FILE_RECEIVED".equals(ack)) {
+                    System.out.println("Client " + clientAddress + " acknowledged file receipt.");
+                }
+            } catch (IOException e) {
+                System.out.println("Client disconnected before acknowledgment: " + e.getMessage());
+                throw e;
+            }
+        }
+
+        // Reply: SEGMENT, file size, start, length, then exactly that many bytes.
+        // A zero-length request is how clients learn the file size before splitting it.
+        private void handleSegmentRequest(String request) throws IOException {
+            int lengthSeparator = request.lastIndexOf(':');
+            int startSeparator = lengthSeparator > 0 ? request.lastIndexOf(':', lengthSeparator - 1) : -1;
+            if (startSeparator <= 0) {
+                out.writeUTF("Invalid segment request. Use SEGMENT:<file name>:<start>:<length>");
+                return;
+            }
+
+            String fileName = request.substring(0, startSeparator);
+            long start;
+            long length;
+            try {
+                start = Long.parseLong(request.substring(startSeparator + 1, lengthSeparator).trim());
+                length = Long.parseLong(request.substring(lengthSeparator + 1).trim());
+            } catch (NumberFormatException e) {
+                out.writeUTF("Invalid segment request. Use SEGMENT:<file name>:<start>:<length>");
+                return;
+            }
+
+            File file = servedFile(fileName);
+            if (file == null || start < 0 || length < 0) {
+                out.writeUTF("NOT_FOUND");
+                return;
+            }
+
+            long fileSize = file.length();
+            start = Math.min(start, fileSize);
+            length = Math.min(length, fileSize - start);
+
+            out.writeUTF("SEGMENT");
+            out.writeLong(fileSize);
+            out.writeLong(start);
+            out.writeLong(length);
+            out.flush();
+            sendFileRange(file, start, start + length, false);
+        }
+
+        private void sendFileRange(File file, long start, long end, boolean logProgress) throws IOException {
+            SocketChannel socketChannel = socket.getChannel();
+            if (socketChannel != null) {
+                // Nothing to send for an empty range, and only a whole-file request may load
+                // the file into the cache
+                ByteBuffer cached = end > start ? fileCache.get(file, start == 0 && end == file.length()) : null;
+                if (cached != null && cached.limit() >= end) {
+                    sendFromCache(cached, start, end, socketChannel, logProgress);
+                    return;
+                }
+                sendFileZeroCopy(file, start, end, socketChannel, logProgress);
+            } else {
+                sendFileBuffered(file, start, end, logProgress);
+            }
+        }
+
+        // Writes a cached file's bytes from its direct buffer straight to the socket
+        private void sendFromCache(ByteBuffer data, long start, long end, SocketChannel socketChannel, boolean logProgress) throws IOException {
+            long fileSize = data.limit();
+            data.position((int) start);
+            long totalSent = start;
+            while (totalSent < end) {
+                long step = scheduler.isCapped() ? THROTTLED_TRANSFER_SIZE : TRANSFER_CHUNK_SIZE;
+                long previous = totalSent;
+                data.limit((int) Math.min(end, totalSent + step));
+                while (data.hasRemaining()) {
+                    int sent = socketChannel.write(data);
+                    bucket.acquire(sent);
+                    totalSent += sent;
+                }
+
+                if (logProgress && fileSize > 1024 * 1024
+                        && (totalSent / TRANSFER_CHUNK_SIZE != previous / TRANSFER_CHUNK_SIZE || totalSent == end)) {
+                    System.out.println("Sent " + formatFileSize(totalSent) + " of " +
+                                      formatFileSize(fileSize) + " to client " + clientAddress + " from cache");
+                }
+            }
+            fileCache.recordServed(end - start);
+        }
+
+        // Lets the kernel move file pages straight to the socket (sendfile on Linux)
+        // without copying them through a Java buffer
+        private void sendFileZeroCopy(File file, long start, long end, SocketChannel socketChannel, boolean logProgress) throws IOException {
+            long fileSize = file.length();
+            try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+                long totalSent = start;
+                while (totalSent < end) {
+                    long step = scheduler.isCapped() ? THROTTLED_TRANSFER_SIZE : TRANSFER_CHUNK_SIZE;
+                    long sent = fileChannel.transferTo(totalSent, Math.min(step, end - totalSent), socketChannel);
+                    if (sent <= 0) {
+                        // transferTo only stops early when the file shrank under us
+                        throw new IOException("File '" + file.getName() + "' changed during transfer");
+                    }
+                    // These bytes bypass the throttled stream, so charge them here
+                    bucket.acquire(sent);
+                    long previous = totalSent;
+                    totalSent += sent;
+
+                    if (logProgress && fileSize > 1024 * 1024
+                            && (totalSent / TRANSFER_CHUNK_SIZE != previous / TRANSFER_CHUNK_SIZE || totalSent == end)) {
+                        System.out.println("Sent " + formatFileSize(totalSent) + " of " +
+                                          formatFileSize(fileSize) + " to client " + clientAddress);
+                    }
+                }
+            }
+        }
+
+        private void sendFileBuffered(File file, long start, long end, boolean logProgress) throws IOException {
+            long fileSize = file.length();
+            try (FileInputStream fileIn = new FileInputStream(file)) {
+                fileIn.getChannel().position(start);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytesRead;
+                long totalSent = start;
+
+                while (totalSent < end && (bytesRead = fileIn.read(buffer, 0, (int) Math.min(buffer.length, end - totalSent))) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                    totalSent += bytesRead;
+
+                    if (logProgress && fileSize > 1024 * 1024 && totalSent % (1024 * 1024) == 0) {
+                        System.out.println("Sent " + formatFileSize(totalSent) + " of " +
+                                          formatFileSize(fileSize) + " to client " + clientAddress);
+                    }
+                }
+                out.flush();
+            }
+        }
+
+        private static String computeSha256(File file) throws IOException {
+            try (FileInputStream fileIn = new FileInputStream(file)) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = fileIn.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+                return toHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 not supported", e);
+            }
+        }
+
+        private static String toHex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : bytes) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
     }
 }
\ No newline at end of file
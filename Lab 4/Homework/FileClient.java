@@ -3,25 +3,81 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class FileClient {
 
     private static final String SERVER_URL = "http://localhost:8080";
     private static final Path DOWNLOAD_DIR = Paths.get("downloads");
     private static final int BUFFER_SIZE = 4096;
+    // Server ETag/Last-Modified for each downloaded file and partial download, keyed by local
+    // file name, as "<server filename>\t<etag>\t<last modified>"
+    private static final Path VALIDATORS_FILE = DOWNLOAD_DIR.resolve(".validators");
+    private static final String PART_SUFFIX = ".part";
+    // Files at least this big go through a resumable chunked upload session
+    private static final long CHUNKED_UPLOAD_THRESHOLD = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int UPLOAD_CONNECTIONS = 4;
+    private static final int CHUNK_ATTEMPTS = 3;
+    // Open upload sessions keyed by "<absolute path>|<size>|<modified>", so uploading the same
+    // unchanged file again resumes where it stopped
+    private static final Path UPLOAD_SESSIONS_FILE = Paths.get(".upload-sessions");
+    // Transfers a sync runs at once; HttpURLConnection keeps this many connections alive for reuse
+    private static final int SYNC_CONNECTIONS = 8;
+    // Per-directory cache of "<size>\t<modified>\t<sha256>" by file name, so a sync only rehashes
+    // files that changed since the last one
+    private static final String SYNC_MANIFEST = ".sync-manifest";
+    private static final int LIST_PAGE_SIZE = 10000;
+    private static final Pattern LIST_ENTRY = Pattern.compile(
+            "\\{\"name\":(\"(?:[^\"\\\\]|\\\\.)*\"),\"size\":\\d+,.*?\"sha256\":\"([0-9a-f]*)\"}");
 
+    static {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(SYNC_CONNECTIONS));
+        }
+    }
+
+    // Usage: java FileClient                            interactive menu
+    //        java FileClient sync up|down <directory>   one sync and exit (e.g. from cron)
     public static void main(String[] args) {
+        if (args.length == 3 && args[0].equals("sync")) {
+            syncDirectory(args[1], Paths.get(args[2]));
+            return;
+        }
         try (Scanner scanner = new Scanner(System.in)) {
             while (true) {
                 System.out.println("\n--- HTTP File Client ---");
                 System.out.println("1. Upload File");
                 System.out.println("2. Download File");
                 System.out.println("3. List Files on Server");
-                System.out.println("4. Exit");
+                System.out.println("4. Sync Directory");
+                System.out.println("5. Exit");
                 System.out.print("Choose an option: ");
                 String choice = scanner.nextLine().trim();
 
@@ -42,6 +98,12 @@ public class FileClient {
                         }
                         break;
                     case "4":
+                        System.out.print("Sync direction (up/down): ");
+                        String direction = scanner.nextLine().trim();
+                        System.out.print("Enter local directory: ");
+                        syncDirectory(direction, Paths.get(scanner.nextLine().trim()));
+                        break;
+                    case "5":
                         System.out.println("Exiting...");
                         return;
                     default:
@@ -58,6 +120,11 @@ public class FileClient {
             return;
         }
 
+        if (filePath.toFile().length() >= CHUNKED_UPLOAD_THRESHOLD) {
+            uploadInChunks(filePath, false);
+            return;
+        }
+
         String filename = filePath.getFileName().toString();
         try {
             URL url = URI.create(SERVER_URL + "/upload?filename=" + URLEncoder.encode(filename, "UTF-8")).toURL();
@@ -93,42 +160,527 @@ public class FileClient {
         }
     }
 
+    // Uploads a large file through a server upload session: UPLOAD_CONNECTIONS threads PUT the
+    // chunks the server is missing, then the server assembles them and checks the SHA-256. If
+    // anything fails the session is kept, and uploading the file again sends only what's missing.
+    // Returns whether the server stored the file.
+    private static boolean uploadInChunks(Path filePath, boolean replace) {
+        String filename = filePath.getFileName().toString();
+        try {
+            long fileSize = Files.size(filePath);
+            String key = filePath.toAbsolutePath() + "|" + fileSize + "|" + Files.getLastModifiedTime(filePath).toMillis();
+            Properties openSessions = loadProperties(UPLOAD_SESSIONS_FILE);
+
+            Map<String, String> status = null;
+            String sessionId = openSessions.getProperty(key);
+            if (sessionId != null) {
+                HttpURLConnection conn = sessionConnection("GET", "id=" + sessionId);
+                if (conn.getResponseCode() == 200) {
+                    status = readStatus(conn);
+                    System.out.println("Resuming upload: " + filename + " (" + formatFileSize(fileSize) + ")");
+                }
+            }
+            if (status == null) {
+                System.out.println("Hashing " + filename + " (" + formatFileSize(fileSize) + ")...");
+                String sha256 = sha256Of(filePath);
+                HttpURLConnection conn = sessionConnection("POST", "filename=" + URLEncoder.encode(filename, "UTF-8")
+                        + "&size=" + fileSize + "&sha256=" + sha256 + "&chunkSize=" + CHUNK_SIZE
+                        + (replace ? "&replace=true" : ""));
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(0);
+                conn.getOutputStream().close();
+                if (conn.getResponseCode() != 200) {
+                    System.out.println("Could not start upload: HTTP " + conn.getResponseCode());
+                    printServerResponse(conn);
+                    return false;
+                }
+                status = readStatus(conn);
+                openSessions.setProperty(key, status.get("id"));
+                storeProperties(UPLOAD_SESSIONS_FILE, openSessions);
+                System.out.println("Uploading: " + filename + " in " + status.get("chunks") + " chunks");
+            }
+
+            String id = status.get("id");
+            long chunkSize = Long.parseLong(status.get("chunkSize"));
+            List<Integer> missing = new ArrayList<>();
+            long missingBytes = 0;
+            for (String chunk : status.getOrDefault("missing", "").split(",")) {
+                if (!chunk.isEmpty()) {
+                    missing.add(Integer.parseInt(chunk));
+                    missingBytes += Math.min(chunkSize, fileSize - Integer.parseInt(chunk) * chunkSize);
+                }
+            }
+
+            AtomicLong sent = new AtomicLong(fileSize - missingBytes);
+            int failed = 0;
+            ExecutorService pool = Executors.newFixedThreadPool(UPLOAD_CONNECTIONS);
+            try (FileChannel channel = FileChannel.open(filePath)) {
+                List<Future<?>> uploads = new ArrayList<>();
+                for (int chunk : missing) {
+                    uploads.add(pool.submit(() -> {
+                        uploadChunk(channel, id, chunk, chunkSize, fileSize);
+                        long total = sent.addAndGet(Math.min(chunkSize, fileSize - chunk * chunkSize));
+                        System.out.print("\rProgress: " + (fileSize > 0 ? total * 100 / fileSize : 100) + "%");
+                        return null;
+                    }));
+                }
+                for (Future<?> upload : uploads) {
+                    try {
+                        upload.get();
+                    } catch (ExecutionException e) {
+                        failed++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                pool.shutdownNow();
+            }
+            if (failed > 0) {
+                System.out.println("\nUpload interrupted: " + failed + " chunks failed. Upload the file again to resume.");
+                return false;
+            }
+
+            System.out.println("\nAll chunks sent, server is verifying...");
+            HttpURLConnection conn = sessionConnection("POST", "id=" + id);
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(0);
+            conn.getOutputStream().close();
+            int responseCode = conn.getResponseCode();
+            if (responseCode == 200 || responseCode == 404) {
+                // Done, or the server no longer knows the session: either way don't resume it.
+                // Anything else (chunks missing, bad hash, server error) is resumed next time.
+                openSessions.remove(key);
+                storeProperties(UPLOAD_SESSIONS_FILE, openSessions);
+            }
+            printServerResponse(conn);
+            return responseCode == 200;
+        } catch (IOException e) {
+            System.out.println("Upload failed: " + e.getMessage() + ". Upload the file again to resume.");
+            return false;
+        }
+    }
+
+    private static void uploadChunk(FileChannel channel, String id, int chunk, long chunkSize, long fileSize) throws IOException {
+        long start = chunk * chunkSize;
+        long length = Math.min(chunkSize, fileSize - start);
+        IOException failure = null;
+        for (int attempt = 0; attempt < CHUNK_ATTEMPTS; attempt++) {
+            try {
+                HttpURLConnection conn = sessionConnection("PUT", "id=" + id + "&chunk=" + chunk);
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(length);
+                conn.setRequestProperty("Content-Type", "application/octet-stream");
+                try (OutputStream os = conn.getOutputStream()) {
+                    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    long position = start;
+                    while (position < start + length) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), start + length - position));
+                        int read = channel.read(buffer, position);
+                        if (read < 0) {
+                            throw new EOFException("File shrank during upload");
+                        }
+                        os.write(buffer.array(), 0, read);
+                        position += read;
+                    }
+                }
+                int responseCode = conn.getResponseCode();
+                conn.getInputStream().close();
+                if (responseCode == 200) {
+                    return;
+                }
+                failure = new IOException("HTTP " + responseCode + " for chunk " + chunk);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static HttpURLConnection sessionConnection(String method, String query) throws IOException {
+        URL url = URI.create(SERVER_URL + "/session?" + query).toURL();
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        return conn;
+    }
+
+    // Parses the "key value" lines of a session status reply
+    private static Map<String, String> readStatus(HttpURLConnection conn) throws IOException {
+        Map<String, String> status = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    status.put(line.substring(0, space), line.substring(space + 1));
+                }
+            }
+        }
+        return status;
+    }
+
+    private static String sha256Of(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not supported", e);
+        }
+    }
+
+    // Mirrors a directory to (up) or from (down) the server. Manifests of both sides (name ->
+    // SHA-256) are compared and only files whose content differs are transferred, SYNC_CONNECTIONS
+    // at a time over reused keep-alive connections. Uploads replace the server's copy, and
+    // downloads are checked against the server's hash before they replace the local file.
+    // Nothing is deleted on either side. Hidden files are left out.
+    private static void syncDirectory(String direction, Path dir) {
+        boolean up = direction.equalsIgnoreCase("up");
+        if (!up && !direction.equalsIgnoreCase("down")) {
+            System.out.println("Sync direction must be up or down.");
+            return;
+        }
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(SYNC_CONNECTIONS);
+        try {
+            if (up && !Files.isDirectory(dir)) {
+                System.out.println("Directory does not exist: " + dir);
+                return;
+            }
+            Files.createDirectories(dir);
+            Properties localManifest = localManifest(dir, pool);
+            Map<String, String> remote = remoteManifest();
+
+            List<String> changed = new ArrayList<>();
+            List<String> large = new ArrayList<>();
+            if (up) {
+                for (String name : localManifest.stringPropertyNames()) {
+                    if (!manifestHash(localManifest, name).equals(remote.get(name))) {
+                        boolean isLarge = Files.size(dir.resolve(name)) >= CHUNKED_UPLOAD_THRESHOLD;
+                        (isLarge ? large : changed).add(name);
+                    }
+                }
+            } else {
+                for (Map.Entry<String, String> entry : remote.entrySet()) {
+                    if (!entry.getValue().equals(manifestHash(localManifest, entry.getKey()))) {
+                        changed.add(entry.getKey());
+                    }
+                }
+            }
+            int total = changed.size() + large.size();
+            int unchanged = (up ? localManifest.size() : remote.size()) - total;
+            System.out.println("Sync " + (up ? "up" : "down") + ": " + total + " to transfer, " + unchanged + " unchanged");
+
+            AtomicInteger done = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            List<Future<?>> transfers = new ArrayList<>();
+            for (String name : changed) {
+                transfers.add(pool.submit(() -> {
+                    try {
+                        if (up) {
+                            syncUpload(dir.resolve(name));
+                        } else {
+                            syncDownload(name, remote.get(name), dir, localManifest);
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        System.out.println("\n" + name + ": " + e.getMessage());
+                    }
+                    System.out.print("\rSynced " + done.incrementAndGet() + "/" + total);
+                }));
+            }
+            for (Future<?> transfer : transfers) {
+                transfer.get();
+            }
+            // Large files get a chunked session each, which is parallel on its own
+            for (String name : large) {
+                System.out.println();
+                if (!uploadInChunks(dir.resolve(name), true)) {
+                    failed.incrementAndGet();
+                }
+                done.incrementAndGet();
+            }
+            if (!up) {
+                storeProperties(dir.resolve(SYNC_MANIFEST), localManifest);
+            }
+
+            System.out.println(String.format("%nSync finished in %.1f s: %d transferred, %d failed, %d unchanged",
+                    (System.nanoTime() - start) / 1e9, done.get() - failed.get(), failed.get(), unchanged));
+        } catch (IOException | ExecutionException e) {
+            System.out.println("Sync failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Hashes the directory's files, reusing the cached hash of any file whose size and
+    // modification time haven't changed, and saves the refreshed manifest
+    private static Properties localManifest(Path dir, ExecutorService pool) throws IOException, InterruptedException, ExecutionException {
+        Path manifestFile = dir.resolve(SYNC_MANIFEST);
+        Properties cached = loadProperties(manifestFile);
+        Properties manifest = new Properties();
+        List<Future<?>> hashing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!Files.isRegularFile(file) || !syncable(name)) {
+                    continue;
+                }
+                long size = Files.size(file);
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                String[] entry = cached.getProperty(name, "").split("\t");
+                if (entry.length == 3 && entry[0].equals(String.valueOf(size)) && entry[1].equals(String.valueOf(modified))) {
+                    manifest.setProperty(name, cached.getProperty(name));
+                } else {
+                    hashing.add(pool.submit(() -> {
+                        manifest.setProperty(name, size + "\t" + modified + "\t" + sha256Of(file));
+                        return null;
+                    }));
+                }
+            }
+        }
+        for (Future<?> job : hashing) {
+            job.get();
+        }
+        storeProperties(manifestFile, manifest);
+        return manifest;
+    }
+
+    // Hidden files (the manifest itself) and partial downloads are left out on both sides
+    private static boolean syncable(String name) {
+        return !name.startsWith(".") && !name.endsWith(PART_SUFFIX);
+    }
+
+    private static String manifestHash(Properties manifest, String name) {
+        String entry = manifest.getProperty(name);
+        return entry == null ? null : entry.substring(entry.lastIndexOf('\t') + 1);
+    }
+
+    // Name -> SHA-256 of every syncable file on the server, read from the JSON listing page by page
+    private static Map<String, String> remoteManifest() throws IOException {
+        Map<String, String> remote = new HashMap<>();
+        String cursor = null;
+        do {
+            URL url = URI.create(SERVER_URL + "/list?format=json&limit=" + LIST_PAGE_SIZE
+                    + (cursor != null ? "&after=" + cursor : "")).toURL();
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            if (conn.getResponseCode() != 200) {
+                throw new IOException("Listing failed with HTTP " + conn.getResponseCode());
+            }
+            String json;
+            try (InputStream in = conn.getInputStream()) {
+                json = new String(in.readAllBytes(), "UTF-8");
+            }
+            Matcher entry = LIST_ENTRY.matcher(json);
+            while (entry.find()) {
+                String name = jsonUnescape(entry.group(1));
+                if (syncable(name)) {
+                    remote.put(name, entry.group(2));
+                }
+            }
+            cursor = conn.getHeaderField("X-Next-Cursor");
+        } while (cursor != null);
+        return remote;
+    }
+
+    private static String jsonUnescape(String quoted) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 1; i < quoted.length() - 1; i++) {
+            char c = quoted.charAt(i);
+            if (c == '\\') {
+                c = quoted.charAt(++i);
+                if (c == 'u') {
+                    c = (char) Integer.parseInt(quoted.substring(i + 1, i + 5), 16);
+                    i += 4;
+                }
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    private static void syncUpload(Path file) throws IOException {
+        String filename = file.getFileName().toString();
+        URL url = URI.create(SERVER_URL + "/upload?replace=true&filename=" + URLEncoder.encode(filename, "UTF-8")).toURL();
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(Files.size(file));
+        conn.setRequestProperty("Content-Type", "application/octet-stream");
+        try (InputStream in = Files.newInputStream(file); OutputStream os = conn.getOutputStream()) {
+            in.transferTo(os);
+        }
+        int responseCode = conn.getResponseCode();
+        String reply = readFully(conn);
+        if (responseCode != 200) {
+            throw new IOException("HTTP " + responseCode + ": " + reply.trim());
+        }
+    }
+
+    private static void syncDownload(String name, String expectedHash, Path dir, Properties localManifest) throws IOException {
+        Path target = dir.toAbsolutePath().normalize().resolve(name).normalize();
+        if (!dir.toAbsolutePath().normalize().equals(target.getParent())) {
+            throw new IOException("Refusing to write outside " + dir);
+        }
+        URL url = URI.create(SERVER_URL + "/download?filename=" + URLEncoder.encode(name, "UTF-8")).toURL();
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        int responseCode = conn.getResponseCode();
+        if (responseCode != 200) {
+            String reply = readFully(conn);
+            throw new IOException("HTTP " + responseCode + ": " + reply.trim());
+        }
+
+        Path part = dir.resolve(name + PART_SUFFIX);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not supported", e);
+        }
+        try (InputStream in = new DigestInputStream(decode(conn.getInputStream(), conn.getContentEncoding()), digest);
+             OutputStream os = Files.newOutputStream(part)) {
+            in.transferTo(os);
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest())
+            hash.append(String.format("%02x", b));
+        if (!hash.toString().equals(expectedHash)) {
+            Files.deleteIfExists(part);
+            throw new IOException("content changed on the server during sync; try again");
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        localManifest.setProperty(name, Files.size(target) + "\t" + Files.getLastModifiedTime(target).toMillis() + "\t" + hash);
+    }
+
+    // Reads the response body (or error body) to the end, which lets the connection be reused
+    private static String readFully(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (in == null) {
+            return "";
+        }
+        try (InputStream body = in) {
+            return new String(body.readAllBytes(), "UTF-8");
+        }
+    }
+
+    // Downloads into <name>.part and renames it when complete. An interrupted download is
+    // resumed with a Range request (guarded by If-Range, so a changed file starts over), and a
+    // file downloaded before is revalidated with If-None-Match/If-Modified-Since instead of
+    // being fetched again.
     private static void downloadFile(String filename) {
         try {
+            if (!Files.exists(DOWNLOAD_DIR)) {
+                Files.createDirectories(DOWNLOAD_DIR);
+            }
+            Properties validators = loadProperties(VALIDATORS_FILE);
+            Path targetFile = getUniqueDownloadPath(filename, validators);
+            String targetKey = targetFile.getFileName().toString();
+            Path partFile = DOWNLOAD_DIR.resolve(targetKey + PART_SUFFIX);
+            String[] cached = Files.exists(targetFile) ? validatorsFor(validators, targetKey, filename) : null;
+            String[] partial = Files.exists(partFile) ? validatorsFor(validators, targetKey + PART_SUFFIX, filename) : null;
+            long resumeFrom = partial != null ? Files.size(partFile) : 0;
+
             URL url = URI.create(SERVER_URL + "/download?filename=" + URLEncoder.encode(filename, "UTF-8")).toURL();
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
             conn.setRequestMethod("GET");
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            if (cached != null) {
+                conn.setRequestProperty("If-None-Match", cached[1]);
+                if (!cached[2].isEmpty()) {
+                    conn.setRequestProperty("If-Modified-Since", cached[2]);
+                }
+            }
+            if (resumeFrom > 0) {
+                conn.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+                conn.setRequestProperty("If-Range", partial[1]);
+            }
 
             int responseCode = conn.getResponseCode();
-            if (responseCode == 200) {
-                if (!Files.exists(DOWNLOAD_DIR)) {
-                    Files.createDirectories(DOWNLOAD_DIR);
+            if (responseCode == 304) {
+                System.out.println("Already up to date: " + targetFile.toAbsolutePath());
+            } else if (responseCode == 200 || responseCode == 206) {
+                boolean resuming = responseCode == 206;
+                if (resuming && rangeStart(conn.getHeaderField("Content-Range")) != resumeFrom) {
+                    // Appending anything but the bytes right after the .part would corrupt it
+                    System.out.println("Server sent a different range than requested; downloading " + filename + " again.");
+                    conn.disconnect();
+                    Files.deleteIfExists(partFile);
+                    validators.remove(targetKey + PART_SUFFIX);
+                    storeProperties(VALIDATORS_FILE, validators);
+                    downloadFile(filename);
+                    return;
                 }
+                String encoding = conn.getContentEncoding();
+                // With a compressed body Content-Length counts compressed bytes, not file bytes.
+                // gzip and deflate streams detect truncation themselves.
+                long contentLength = encoding == null ? conn.getContentLengthLong() : -1;
+                long totalSize = contentLength >= 0 ? contentLength + (resuming ? resumeFrom : 0) : -1;
+                System.out.println((resuming ? "Resuming: " + filename + " from " + formatFileSize(resumeFrom) : "Downloading: " + filename)
+                        + (totalSize > 0 ? " (" + formatFileSize(totalSize) + ")" : ""));
 
-                Path targetFile = getUniqueDownloadPath(filename);
-                long contentLength = conn.getContentLengthLong();
-                System.out.println("Downloading: " + filename +
-                        (contentLength > 0 ? " (" + formatFileSize(contentLength) + ")" : ""));
+                // Record the validators first, so the .part can be resumed if we're interrupted
+                String etag = conn.getHeaderField("ETag");
+                String lastModified = conn.getHeaderField("Last-Modified");
+                String validator = filename + "\t" + (etag != null ? etag : "") + "\t" + (lastModified != null ? lastModified : "");
+                if (etag != null) {
+                    validators.setProperty(targetKey + PART_SUFFIX, validator);
+                } else {
+                    validators.remove(targetKey + PART_SUFFIX);
+                }
+                storeProperties(VALIDATORS_FILE, validators);
 
-                try (InputStream is = conn.getInputStream();
-                     OutputStream os = Files.newOutputStream(targetFile)) {
+                try (InputStream is = decode(conn.getInputStream(), encoding);
+                     OutputStream os = resuming
+                             ? Files.newOutputStream(partFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                             : Files.newOutputStream(partFile)) {
 
                     byte[] buffer = new byte[BUFFER_SIZE];
                     int bytesRead;
-                    long totalRead = 0;
+                    long totalRead = resuming ? resumeFrom : 0;
 
                     while ((bytesRead = is.read(buffer)) != -1) {
                         os.write(buffer, 0, bytesRead);
                         totalRead += bytesRead;
-                        if (contentLength > 0) {
-                            int progress = (int) ((totalRead * 100) / contentLength);
+                        if (totalSize > 0) {
+                            int progress = (int) ((totalRead * 100) / totalSize);
                             System.out.print("\rProgress: " + progress + "%");
                         } else {
                             System.out.print("\rDownloaded: " + totalRead + " bytes");
                         }
                     }
-                    System.out.println("\nDownload completed: " + targetFile.toAbsolutePath());
+                    if (totalSize >= 0 && totalRead != totalSize) {
+                        System.out.println("\nDownload incomplete: " + formatFileSize(totalRead) + " of " + formatFileSize(totalSize)
+                                + " received. Download it again to resume.");
+                        return;
+                    }
                 }
+
+                Files.move(partFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+                validators.remove(targetKey + PART_SUFFIX);
+                if (etag != null) {
+                    validators.setProperty(targetKey, validator);
+                } else {
+                    validators.remove(targetKey);
+                }
+                storeProperties(VALIDATORS_FILE, validators);
+                System.out.println("\nDownload completed: " + targetFile.toAbsolutePath());
+            } else if (responseCode == 416) {
+                // The partial file doesn't fit the server's copy any more; start again
+                Files.deleteIfExists(partFile);
+                validators.remove(targetKey + PART_SUFFIX);
+                storeProperties(VALIDATORS_FILE, validators);
+                downloadFile(filename);
             } else if (responseCode == 404) {
                 System.out.println("File not found on server.");
             } else {
@@ -140,26 +692,85 @@ public class FileClient {
             System.out.println("Download failed: " + e.getMessage());
         }
     }
+
+    // First byte position of a "bytes first-last/total" Content-Range, or -1 if there is none
+    private static long rangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        try {
+            return dash > 6 ? Long.parseLong(contentRange.substring(6, dash).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Decompresses the body while it streams, so the .part file always holds the file's bytes
+    private static InputStream decode(InputStream in, String encoding) throws IOException {
+        if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+            return in;
+        } else if (encoding.equalsIgnoreCase("gzip")) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        } else if (encoding.equalsIgnoreCase("deflate")) {
+            return new InflaterInputStream(in);
+        }
+        throw new IOException("Unsupported Content-Encoding: " + encoding);
+    }
+
+    // Stored {server filename, etag, last modified} for a local file, if it came from this server file
+    private static String[] validatorsFor(Properties validators, String key, String filename) {
+        String value = validators.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        String[] fields = value.split("\t", -1);
+        return fields.length == 3 && fields[0].equals(filename) && !fields[1].isEmpty() ? fields : null;
+    }
+
+    private static Properties loadProperties(Path file) throws IOException {
+        Properties properties = new Properties();
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                properties.load(reader);
+            }
+        }
+        return properties;
+    }
+
+    private static void storeProperties(Path file, Properties properties) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            properties.store(writer, null);
+        }
+    }
+
+    // The server sends the list a page at a time; follow X-Next-Cursor until it runs out
     private static void listFiles() throws IOException {
-        URL url = URI.create(SERVER_URL + "/list").toURL();
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("GET");
+        System.out.println("Files on server:");
+        String cursor = null;
+        do {
+            URL url = URI.create(SERVER_URL + "/list" + (cursor != null ? "?after=" + cursor : "")).toURL();
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("GET");
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode == 200) {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                System.out.println("Files on server:");
+            int responseCode = conn.getResponseCode();
+            if (responseCode != 200) {
+                System.out.println("Failed to retrieve file list. Server responded with: " + responseCode);
+                return;
+            }
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"))) {
                 String line;
                 while ((line = in.readLine()) != null) {
                     System.out.println(" - " + line);
                 }
             }
-        } else {
-            System.out.println("Failed to retrieve file list. Server responded with: " + responseCode);
-        }
+            cursor = conn.getHeaderField("X-Next-Cursor");
+        } while (cursor != null);
     }
 
-    private static Path getUniqueDownloadPath(String filename) {
+    // The first of name, name_1, ... that is free or already holds a download of this server
+    // file that can be revalidated
+    private static Path getUniqueDownloadPath(String filename, Properties validators) {
         Path target = DOWNLOAD_DIR.resolve(filename);
         int count = 1;
         String baseName = filename;
@@ -171,7 +782,7 @@ public class FileClient {
             extension = filename.substring(dotIndex);
         }
 
-        while (Files.exists(target)) {
+        while (Files.exists(target) && validatorsFor(validators, target.getFileName().toString(), filename) == null) {
             target = DOWNLOAD_DIR.resolve(baseName + "_" + count + extension);
             count++;
         }
@@ -1,3 +1,4 @@
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -5,30 +6,131 @@ import com.sun.net.httpserver.HttpServer;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class FileServer {
 
     private static final int PORT = 8080;
     private static final File UPLOAD_DIR = new File("uploads");
-    private static final int MAX_UPLOAD_SIZE = 20 * 1024 * 1024; // 20MB max
+    private static final long DEFAULT_MAX_UPLOAD_MB = 1024;
+    // Uploads stream into temp files with this prefix and are renamed once complete
+    private static final String TEMP_PREFIX = ".upload-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static long maxUploadSize = DEFAULT_MAX_UPLOAD_MB * 1024 * 1024;
+    private static final String INDEX_FILE = ".hash-index";
+    // More ranges than this in one request are answered with the whole file
+    private static final int MAX_RANGES = 16;
+    private static final String MULTIPART_BOUNDARY = "FILESERVER_BYTERANGES";
+    // Smaller files aren't worth keeping a compressed copy of
+    private static final long MIN_COMPRESS_SIZE = 1024;
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+            "application/json", "application/xml", "application/javascript", "application/x-javascript",
+            "application/x-sh", "application/sql", "image/svg+xml");
+    // Compressed variants are built off the request threads, one at a time
+    private static final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "compressor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private static final Set<String> pendingVariants = ConcurrentHashMap.newKeySet();
+    // Chunked upload sessions keep their data and state in the upload directory under this prefix
+    private static final String SESSION_PREFIX = ".session-";
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    // Sessions nobody has touched for this long are discarded
+    private static final long SESSION_EXPIRY_MS = 24 * 60 * 60 * 1000L;
+    private static final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    // Held while choosing a free name and renaming into it, so two uploads can't pick the same one
+    private static final Object NAME_LOCK = new Object();
+    private static final FileIndex fileIndex = new FileIndex(new File(UPLOAD_DIR, INDEX_FILE));
+    private static final long RECONCILE_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    private static final int MAX_PAGE_SIZE = 10000;
+    private static final int WORKER_THREADS = 10;
+    // Upper bounds of the request latency histogram buckets, in seconds
+    private static final double[] LATENCY_BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final Map<String, HandlerMetrics> handlerMetrics = new LinkedHashMap<>();
+    private static ThreadPoolExecutor workers;
+    // Skip content that is already stored under another name instead of linking it there;
+    // the new name then doesn't exist, so this is opt-in
+    private static boolean skipDuplicates = false;
 
+    // Usage: java FileServer [max upload size in MB] [--skip-duplicates]
     public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            if (arg.equals("--skip-duplicates")) {
+                skipDuplicates = true;
+            } else if (arg.matches("\\d{1,12}")) {
+                maxUploadSize = Long.parseLong(arg) * 1024 * 1024;
+            } else {
+                System.out.println("Unknown argument: " + arg);
+                System.out.println("Usage: java FileServer [max upload size in MB] [--skip-duplicates]");
+                return;
+            }
+        }
         if (!UPLOAD_DIR.exists())
             UPLOAD_DIR.mkdirs();
+        fileIndex.load();
+        ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "index-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconciler.scheduleWithFixedDelay(() -> {
+            try {
+                fileIndex.reconcile();
+            } catch (IOException e) {
+                System.out.println("Index reconcile failed: " + e.getMessage());
+            }
+        }, RECONCILE_INTERVAL_SECONDS, RECONCILE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        UploadSession.loadAll();
 
+        // Without TCP_NODELAY, small responses written as headers then body stall on delayed ACKs
+        // (~40 ms each), which dominates syncs of many small files
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
         HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
-        server.createContext("/list", new ListFilesHandler());
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        createContext(server, "/upload", "upload", new UploadHandler());
+        createContext(server, "/session", "session", new SessionHandler());
+        createContext(server, "/download", "download", new DownloadHandler());
+        createContext(server, "/list", "list", new ListFilesHandler());
+        server.createContext("/metrics", new MetricsHandler());
+        workers = (ThreadPoolExecutor) Executors.newFixedThreadPool(WORKER_THREADS);
+        server.setExecutor(workers);
         server.start();
-        System.out.println("Secure file server started on port " + PORT);
+        System.out.println("Secure file server started on port " + PORT + " (max upload " + formatFileSize(maxUploadSize) + ")");
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             server.stop(1);
             System.out.println("Server stopped.");
@@ -36,6 +138,186 @@ public class FileServer {
 
     }
 
+    // Registers a handler with a metrics filter in front of it, reported under the given name
+    private static void createContext(HttpServer server, String path, String name, HttpHandler handler) {
+        HandlerMetrics metrics = new HandlerMetrics(name);
+        handlerMetrics.put(name, metrics);
+        server.createContext(path, handler).getFilters().add(metrics);
+    }
+
+    // Request metrics for one handler: counts by status code, body bytes in and out, requests in
+    // flight and a latency histogram. Every request thread updates these, so they are LongAdders,
+    // which stripe updates over several cells instead of contending on one counter.
+    static class HandlerMetrics extends Filter {
+        final String handler;
+        final Map<String, LongAdder> statusCounts = new ConcurrentHashMap<>();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder inFlight = new LongAdder();
+        // One more bucket than LATENCY_BUCKETS, for +Inf
+        final LongAdder[] latencyBuckets = new LongAdder[LATENCY_BUCKETS.length + 1];
+        final LongAdder latencyNanos = new LongAdder();
+
+        HandlerMetrics(String handler) {
+            this.handler = handler;
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                latencyBuckets[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            inFlight.increment();
+            exchange.setStreams(new CountingInputStream(exchange.getRequestBody(), bytesIn),
+                    new CountingOutputStream(exchange.getResponseBody(), bytesOut));
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                inFlight.decrement();
+                long elapsed = System.nanoTime() - start;
+                latencyNanos.add(elapsed);
+                double seconds = elapsed / 1e9;
+                int bucket = 0;
+                while (bucket < LATENCY_BUCKETS.length && seconds > LATENCY_BUCKETS[bucket]) {
+                    bucket++;
+                }
+                latencyBuckets[bucket].increment();
+                // No status means the handler failed before sending a response
+                int code = exchange.getResponseCode();
+                statusCounts.computeIfAbsent(code > 0 ? String.valueOf(code) : "error", c -> new LongAdder()).increment();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Collects request metrics for " + handler;
+        }
+
+        // Appends this handler's samples to each metric family's group; the exposition format
+        // wants all samples of a family together, whichever handler they belong to
+        void render(Map<String, StringBuilder> families) {
+            String label = "handler=\"" + handler + "\"";
+            for (Map.Entry<String, LongAdder> status : new TreeMap<>(statusCounts).entrySet()) {
+                families.get("fileserver_requests_total").append("fileserver_requests_total{").append(label)
+                        .append(",code=\"").append(status.getKey()).append("\"} ").append(status.getValue().sum()).append('\n');
+            }
+            sample(families, "fileserver_request_bytes_total", label, bytesIn.sum());
+            sample(families, "fileserver_response_bytes_total", label, bytesOut.sum());
+            sample(families, "fileserver_requests_in_flight", label, inFlight.sum());
+            StringBuilder histogram = families.get("fileserver_request_duration_seconds");
+            long cumulative = 0;
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                cumulative += latencyBuckets[i].sum();
+                histogram.append("fileserver_request_duration_seconds_bucket{").append(label).append(",le=\"")
+                        .append(i < LATENCY_BUCKETS.length ? String.valueOf(LATENCY_BUCKETS[i]) : "+Inf")
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            histogram.append("fileserver_request_duration_seconds_sum{").append(label).append("} ")
+                    .append(latencyNanos.sum() / 1e9).append('\n');
+            histogram.append("fileserver_request_duration_seconds_count{").append(label).append("} ")
+                    .append(cumulative).append('\n');
+        }
+
+        private static void sample(Map<String, StringBuilder> families, String name, String label, long value) {
+            families.get(name).append(name).append('{').append(label).append("} ").append(value).append('\n');
+        }
+    }
+
+    static class CountingInputStream extends FilterInputStream {
+        private final LongAdder counter;
+
+        CountingInputStream(InputStream in, LongAdder counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                counter.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                counter.add(read);
+            }
+            return read;
+        }
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder counter;
+
+        CountingOutputStream(OutputStream out, LongAdder counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+
+        // FilterOutputStream would otherwise write the array a byte at a time
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+
+    // GET /metrics: per-handler request metrics plus worker pool saturation and a few server
+    // gauges, in the Prometheus text exposition format
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Map<String, StringBuilder> families = new LinkedHashMap<>();
+            families.put("fileserver_requests_total", new StringBuilder("# TYPE fileserver_requests_total counter\n"));
+            families.put("fileserver_request_bytes_total", new StringBuilder("# TYPE fileserver_request_bytes_total counter\n"));
+            families.put("fileserver_response_bytes_total", new StringBuilder("# TYPE fileserver_response_bytes_total counter\n"));
+            families.put("fileserver_requests_in_flight", new StringBuilder("# TYPE fileserver_requests_in_flight gauge\n"));
+            families.put("fileserver_request_duration_seconds", new StringBuilder("# TYPE fileserver_request_duration_seconds histogram\n"));
+            for (HandlerMetrics metrics : handlerMetrics.values()) {
+                metrics.render(families);
+            }
+            StringBuilder out = new StringBuilder();
+            for (StringBuilder family : families.values()) {
+                out.append(family);
+            }
+            out.append("# TYPE fileserver_executor_queue_depth gauge\n");
+            out.append("fileserver_executor_queue_depth ").append(workers.getQueue().size()).append('\n');
+            out.append("# TYPE fileserver_executor_active_threads gauge\n");
+            out.append("fileserver_executor_active_threads ").append(workers.getActiveCount()).append('\n');
+            out.append("# TYPE fileserver_executor_max_threads gauge\n");
+            out.append("fileserver_executor_max_threads ").append(workers.getMaximumPoolSize()).append('\n');
+            out.append("# TYPE fileserver_compression_queue_depth gauge\n");
+            out.append("fileserver_compression_queue_depth ").append(pendingVariants.size()).append('\n');
+            out.append("# TYPE fileserver_upload_sessions gauge\n");
+            out.append("fileserver_upload_sessions ").append(sessions.size()).append('\n');
+            out.append("# TYPE fileserver_indexed_files gauge\n");
+            out.append("fileserver_indexed_files ").append(fileIndex.size()).append('\n');
+
+            byte[] responseBytes = out.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, responseBytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(responseBytes);
+            }
+        }
+    }
+
     static class DownloadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -52,25 +334,325 @@ public class FileServer {
             }
 
             File file = new File(UPLOAD_DIR, filename);
-            if (!file.exists() || file.isDirectory()) {
+            if (!file.exists() || file.isDirectory() || isInternalFile(filename)) {
                 sendResponse(exchange, 404, "File Not Found");
                 return;
             }
 
-            String mime = java.nio.file.Files.probeContentType(file.toPath());
-            if (mime == null)
-                mime = "application/octet-stream";
-            exchange.getResponseHeaders().add("Content-Type", mime);
-            exchange.getResponseHeaders().add("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+            long length = file.length();
+            long modifiedSeconds = file.lastModified() / 1000;
+            String etag = etagOf(file);
+            String mime = fileIndex.mimeOf(file);
+            String range = exchange.getRequestHeaders().getFirst("Range");
+
+            // Whole-file requests for compressible types get a precompressed variant when the
+            // client accepts one; ranges are always served from the original
+            boolean compressible = isCompressible(mime);
+            ContentEncoding encoding = compressible && range == null
+                    ? ContentEncoding.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"))
+                    : null;
+            File variant = encoding != null ? freshVariant(file, encoding) : null;
+            String representationEtag = variant != null ? encoding.tag(etag) : etag;
+
+            exchange.getResponseHeaders().add("ETag", representationEtag);
+            exchange.getResponseHeaders().add("Last-Modified", httpDate(modifiedSeconds));
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (compressible) {
+                exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+            }
             exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-            exchange.sendResponseHeaders(200, file.length());
 
-            try (OutputStream os = exchange.getResponseBody(); FileInputStream fis = new FileInputStream(file)) {
-                fis.transferTo(os);
+            // Conditional GET: If-None-Match wins over If-Modified-Since when both are sent
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            if (ifNoneMatch != null ? etagMatches(ifNoneMatch, representationEtag)
+                    : ifModifiedSince != null && parseHttpDate(ifModifiedSince) >= modifiedSeconds) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            exchange.getResponseHeaders().add("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+
+            // A Range only applies if the client's copy is still current (If-Range). Clients
+            // decode compressed downloads as they go, so a validator of any encoding of this
+            // file names the same bytes.
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            List<long[]> ranges = null;
+            if (range != null && (ifRange == null || ContentEncoding.untag(ifRange.trim()).equals(etag)
+                    || parseHttpDate(ifRange) == modifiedSeconds)) {
+                ranges = parseRanges(range, length);
+            }
+
+            if (ranges == null && variant != null) {
+                try (FileChannel channel = FileChannel.open(variant.toPath())) {
+                    exchange.getResponseHeaders().add("Content-Type", mime);
+                    exchange.getResponseHeaders().add("Content-Encoding", encoding.token);
+                    exchange.sendResponseHeaders(200, channel.size());
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        copyRange(channel, 0, channel.size(), os);
+                    }
+                }
+            } else if (ranges == null) {
+                exchange.getResponseHeaders().add("Content-Type", mime);
+                exchange.sendResponseHeaders(200, length);
+                try (OutputStream os = exchange.getResponseBody(); FileInputStream fis = new FileInputStream(file)) {
+                    fis.transferTo(os);
+                }
+            } else if (ranges.isEmpty()) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+            } else if (ranges.size() == 1) {
+                long[] r = ranges.get(0);
+                exchange.getResponseHeaders().add("Content-Type", mime);
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+                exchange.sendResponseHeaders(206, r[1] - r[0] + 1);
+                try (OutputStream os = exchange.getResponseBody(); FileChannel channel = FileChannel.open(file.toPath())) {
+                    copyRange(channel, r[0], r[1] - r[0] + 1, os);
+                }
+            } else {
+                // multipart/byteranges: one part per range, each with its own Content-Range
+                List<byte[]> partHeaders = new ArrayList<>();
+                long bodyLength = 0;
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] r = ranges.get(i);
+                    byte[] header = ((i == 0 ? "" : "\r\n") + "--" + MULTIPART_BOUNDARY + "\r\n"
+                            + "Content-Type: " + mime + "\r\n"
+                            + "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII);
+                    partHeaders.add(header);
+                    bodyLength += header.length + r[1] - r[0] + 1;
+                }
+                byte[] trailer = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+                bodyLength += trailer.length;
+
+                exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+                exchange.sendResponseHeaders(206, bodyLength);
+                try (OutputStream os = exchange.getResponseBody(); FileChannel channel = FileChannel.open(file.toPath())) {
+                    for (int i = 0; i < ranges.size(); i++) {
+                        long[] r = ranges.get(i);
+                        os.write(partHeaders.get(i));
+                        copyRange(channel, r[0], r[1] - r[0] + 1, os);
+                    }
+                    os.write(trailer);
+                }
             }
         }
     }
 
+    // Content-Encodings we keep precompressed variants for, in order of preference. A variant
+    // is stored next to the original as <prefix><name> with the original's modification time,
+    // which is how a stale one is recognised.
+    enum ContentEncoding {
+        GZIP("gzip", ".gz-"),
+        DEFLATE("deflate", ".zz-");
+
+        final String token;
+        final String prefix;
+
+        ContentEncoding(String token, String prefix) {
+            this.token = token;
+            this.prefix = prefix;
+        }
+
+        // Variants are built once and served many times, so spend the CPU on the best ratio
+        OutputStream compress(OutputStream out) throws IOException {
+            if (this == GZIP) {
+                return new GZIPOutputStream(out, BUFFER_SIZE) {{
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }};
+            }
+            return new DeflaterOutputStream(out) {{
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }};
+        }
+
+        String tag(String etag) {
+            return etag.substring(0, etag.length() - 1) + "-" + token + "\"";
+        }
+
+        static String untag(String etag) {
+            for (ContentEncoding encoding : values()) {
+                String suffix = "-" + encoding.token + "\"";
+                if (etag.endsWith(suffix)) {
+                    return etag.substring(0, etag.length() - suffix.length()) + "\"";
+                }
+            }
+            return etag;
+        }
+
+        // The client's most preferred encoding we support (ties go to gzip), or null for identity
+        static ContentEncoding negotiate(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return null;
+            }
+            Map<String, Double> weights = new HashMap<>();
+            for (String item : acceptEncoding.split(",")) {
+                String[] parts = item.trim().split(";");
+                double q = 1.0;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                weights.put(parts[0].trim().toLowerCase(), q);
+            }
+            ContentEncoding best = null;
+            double bestWeight = 0;
+            for (ContentEncoding encoding : values()) {
+                double q = weights.getOrDefault(encoding.token, weights.getOrDefault("*", 0.0));
+                if (q > bestWeight) {
+                    best = encoding;
+                    bestWeight = q;
+                }
+            }
+            return best;
+        }
+    }
+
+    private static boolean isCompressible(String mime) {
+        return mime.startsWith("text/") || mime.endsWith("+xml") || mime.endsWith("+json")
+                || COMPRESSIBLE_TYPES.contains(mime);
+    }
+
+    // The up-to-date compressed variant of a file if it exists and is actually smaller. When
+    // it's missing or stale, a background build is queued and the caller serves the original.
+    private static File freshVariant(File file, ContentEncoding encoding) {
+        File variant = new File(UPLOAD_DIR, encoding.prefix + file.getName());
+        if (variant.isFile() && variant.lastModified() == file.lastModified()) {
+            return variant.length() < file.length() ? variant : null;
+        }
+        if (file.length() >= MIN_COMPRESS_SIZE && pendingVariants.add(variant.getName())) {
+            compressor.execute(() -> buildVariant(file, variant, encoding));
+        }
+        return null;
+    }
+
+    private static void buildVariant(File original, File variant, ContentEncoding encoding) {
+        try {
+            long modified = original.lastModified();
+            File temp = File.createTempFile(TEMP_PREFIX, ".tmp", UPLOAD_DIR);
+            try {
+                try (InputStream in = new FileInputStream(original);
+                     OutputStream out = encoding.compress(new FileOutputStream(temp))) {
+                    in.transferTo(out);
+                }
+                // Only publish it if the original didn't change while it was being compressed
+                if (original.lastModified() == modified && temp.setLastModified(modified)) {
+                    Files.move(temp.toPath(), variant.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        } catch (IOException e) {
+            System.out.println("Could not compress " + original.getName() + ": " + e.getMessage());
+        } finally {
+            pendingVariants.remove(variant.getName());
+        }
+    }
+
+    // Content hash from the index when it's current, otherwise size and modification time
+    private static String etagOf(File file) {
+        String hash = fileIndex.hashOf(file);
+        if (hash != null) {
+            return "\"" + hash + "\"";
+        }
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    private static boolean etagMatches(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String httpDate(long epochSeconds) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(epochSeconds).atZone(ZoneOffset.UTC));
+    }
+
+    // Seconds since the epoch, or -1 if the header isn't an HTTP date
+    private static long parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // Parses "bytes=a-b,c-,-n" into inclusive [start, end] pairs clipped to the file. Returns
+    // null when the header should be ignored (malformed or too many ranges) and an empty list
+    // when none of the ranges overlap the file.
+    private static List<long[]> parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // Suffix range: the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                        return null;
+                    }
+                }
+                if (start < length && start <= end) {
+                    ranges.add(new long[]{start, end});
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    private static void copyRange(FileChannel channel, long position, long count, OutputStream os) throws IOException {
+        WritableByteChannel out = Channels.newChannel(os);
+        while (count > 0) {
+            long sent = channel.transferTo(position, count, out);
+            if (sent <= 0) {
+                throw new EOFException("File shrank while sending range");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+
     static class UploadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -79,72 +661,686 @@ public class FileServer {
                 return;
             }
 
-            // Enforce max upload size
-            InputStream is = exchange.getRequestBody();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[4096];
-            int total = 0;
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                total += bytesRead;
-                if (total > MAX_UPLOAD_SIZE) {
-                    sendResponse(exchange, 413, "Payload Too Large");
-                    return;
+            // Determine filename; ?replace=true overwrites a file of that name instead of picking a new one
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String filename = uploadFilename(exchange, exchange.getRequestHeaders().getFirst("X-Filename") != null
+                    ? exchange.getRequestHeaders().getFirst("X-Filename")
+                    : params.get("filename"));
+            if (filename == null) {
+                return;
+            }
+            boolean replace = "true".equals(params.get("replace"));
+
+            // Enforce max upload size up front when the client declares it
+            String declaredLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (declaredLength != null) {
+                try {
+                    if (Long.parseLong(declaredLength.trim()) > maxUploadSize) {
+                        sendResponse(exchange, 413, "Payload Too Large");
+                        return;
+                    }
+                } catch (NumberFormatException e) {
+                    // Let the streaming check below catch it
                 }
-                baos.write(buffer, 0, bytesRead);
             }
 
-            byte[] uploadedData = baos.toByteArray();
+            // Stream the body into a temp file, hashing it on the way, so heap use doesn't
+            // depend on the upload size
+            File tempFile = File.createTempFile(TEMP_PREFIX, ".tmp", UPLOAD_DIR);
+            String uploadedHash;
+            try {
+                MessageDigest digest = newSha256();
+                long total = 0;
+                try (InputStream is = exchange.getRequestBody();
+                     OutputStream os = new FileOutputStream(tempFile)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int bytesRead;
+                    while ((bytesRead = is.read(buffer)) != -1) {
+                        total += bytesRead;
+                        if (total > maxUploadSize) {
+                            sendResponse(exchange, 413, "Payload Too Large");
+                            return;
+                        }
+                        digest.update(buffer, 0, bytesRead);
+                        os.write(buffer, 0, bytesRead);
+                    }
+                }
+                uploadedHash = toHex(digest.digest());
 
-            // Determine filename
-            String filename = exchange.getRequestHeaders().getFirst("X-Filename") != null
-                    ? exchange.getRequestHeaders().getFirst("X-Filename")
-                    : parseQuery(exchange.getRequestURI().getRawQuery()).get("filename");
-            if (filename == null || filename.isBlank()) {
-                filename = "upload_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".dat";
-            } else {
-                if (filename.matches(".*[<>:\"|?*].*")) {
-                    sendResponse(exchange, 400, "Invalid characters in filename");
-                    return;
+                sendResponse(exchange, 200, storeUpload(tempFile, filename, uploadedHash, total, replace));
+            } finally {
+                // Still there only if the upload failed or was a duplicate
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+    }
+
+    // Cleans a client-supplied upload name, or replies 400 and returns null if it can't be used
+    private static String uploadFilename(HttpExchange exchange, String filename) throws IOException {
+        if (filename == null || filename.isBlank()) {
+            filename = "upload_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".dat";
+        } else {
+            if (filename.matches("(?s).*[<>:\"|?*\\p{Cntrl}].*")) {
+                sendResponse(exchange, 400, "Invalid characters in filename");
+                return null;
+            }
+        }
+        filename = filename.replaceAll("[\\\\/]", "_");
+        if (isInternalFile(filename)) {
+            sendResponse(exchange, 400, "Invalid filename");
+            return null;
+        }
+        return filename;
+    }
+
+    // Moves a complete, hashed upload into place, under a free name or over the file of that name
+    // when replacing. Content the file index already has under another name is stored as a hard
+    // link to it where the filesystem allows, and as the uploaded copy otherwise, so the name
+    // always exists afterwards. Returns the reply for the client. The temp file is left behind
+    // when it isn't used, for the caller to delete.
+    private static String storeUpload(File tempFile, String filename, String hash, long size, boolean replace) throws IOException {
+        File uploadedFile;
+        boolean linked = false;
+        synchronized (NAME_LOCK) {
+            File existing = fileIndex.find(hash, size, filename);
+            if (existing != null && existing.getName().equals(filename)) {
+                return "Duplicate file detected. Upload skipped.";
+            }
+            // A replace asks for the content under this exact name, so it's stored even if
+            // another name already has it
+            if (existing != null && skipDuplicates && !replace) {
+                return "Duplicate file detected (same content as " + existing.getName() + "). Upload skipped.";
+            }
+            uploadedFile = replace ? new File(UPLOAD_DIR, filename) : uniqueFile(filename);
+            File source = tempFile;
+            File link = new File(UPLOAD_DIR, TEMP_PREFIX + UUID.randomUUID() + ".link");
+            try {
+                if (existing != null) {
+                    // Link under a temp name first, so it can replace a file atomically too
+                    try {
+                        Files.createLink(link.toPath(), existing.toPath());
+                        source = link;
+                        linked = true;
+                    } catch (IOException | UnsupportedOperationException e) {
+                        // Filesystem without hard links: store the upload as a copy
+                    }
+                }
+                // Readers never see a partly written file under the final name
+                Files.move(source.toPath(), uploadedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(link.toPath());
+            }
+            fileIndex.add(uploadedFile, hash);
+        }
+        return "Upload successful: " + uploadedFile.getName() + (linked ? " (linked to existing copy)" : "");
+    }
+
+    // Resumable chunked uploads, for files too big to send reliably in one request:
+    //   POST   /session?filename=&size=&sha256=[&chunkSize=][&replace=true]  create a session
+    //   PUT    /session?id=&chunk=n                           upload chunk n (any order, in parallel)
+    //   GET    /session?id=                                   status, including which chunks are missing
+    //   POST   /session?id=                                   assemble, verify the SHA-256 and store
+    //   DELETE /session?id=                                   abandon the session
+    // Create and status reply with "key value" lines: id, size, chunkSize, chunks, missing
+    // (comma-separated chunk numbers). Each chunk is one request, so the upload size limit
+    // applies per chunk rather than to the whole file.
+    static class SessionHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod().toUpperCase();
+            String id = params.get("id");
+            if (id == null) {
+                if (method.equals("POST")) {
+                    create(exchange, params);
+                } else {
+                    sendResponse(exchange, 400, "Missing session id");
                 }
+                return;
             }
-            filename = filename.replaceAll("[\\\\/]", "_");
 
-            File uploadedFile = new File(UPLOAD_DIR, filename);
-            String uploadedHash = computeSHA256(new ByteArrayInputStream(uploadedData));
+            UploadSession session = sessions.get(id);
+            if (session == null) {
+                sendResponse(exchange, 404, "No such upload session");
+                return;
+            }
+            session.lastActivity = System.currentTimeMillis();
+            switch (method) {
+                case "PUT":
+                    receiveChunk(exchange, session, params.get("chunk"));
+                    break;
+                case "GET":
+                    sendResponse(exchange, 200, session.status());
+                    break;
+                case "POST":
+                    complete(exchange, session);
+                    break;
+                case "DELETE":
+                    session.discard();
+                    sendResponse(exchange, 200, "Upload session discarded");
+                    break;
+                default:
+                    sendResponse(exchange, 405, "Method Not Allowed");
+            }
+        }
 
-            if (uploadedFile.exists()) {
-                String existingHash = computeSHA256(new FileInputStream(uploadedFile));
-                if (uploadedHash.equals(existingHash)) {
-                    sendResponse(exchange, 200, "Duplicate file detected. Upload skipped.");
+        private void create(HttpExchange exchange, Map<String, String> params) throws IOException {
+            String filename = uploadFilename(exchange, params.get("filename"));
+            if (filename == null) {
+                return;
+            }
+            long size;
+            int chunkSize;
+            try {
+                size = Long.parseLong(params.getOrDefault("size", ""));
+                chunkSize = Integer.parseInt(params.getOrDefault("chunkSize", String.valueOf(DEFAULT_CHUNK_SIZE)));
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "size and chunkSize must be numbers");
+                return;
+            }
+            String sha256 = params.get("sha256");
+            if (size < 0 || sha256 == null || !sha256.matches("[0-9a-fA-F]{64}")) {
+                sendResponse(exchange, 400, "A size and the file's SHA-256 are required");
+                return;
+            }
+            if (size > UPLOAD_DIR.getUsableSpace()) {
+                sendResponse(exchange, 507, "Insufficient Storage");
+                return;
+            }
+            chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(chunkSize, Math.min(MAX_CHUNK_SIZE, maxUploadSize)));
+
+            UploadSession.expireIdle();
+            UploadSession session = UploadSession.create(filename, size, chunkSize, sha256.toLowerCase(),
+                    "true".equals(params.get("replace")));
+            sendResponse(exchange, 200, session.status());
+        }
+
+        private void receiveChunk(HttpExchange exchange, UploadSession session, String chunkParam) throws IOException {
+            int chunk;
+            try {
+                chunk = Integer.parseInt(chunkParam);
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Invalid chunk number");
+                return;
+            }
+            if (chunk < 0 || chunk >= session.chunkCount()) {
+                sendResponse(exchange, 400, "Chunk number out of range");
+                return;
+            }
+
+            session.lock.readLock().lock();
+            try {
+                // Completed or discarded while this request was waiting for the lock
+                if (!sessions.containsKey(session.id)) {
+                    sendResponse(exchange, 404, "No such upload session");
                     return;
-                } else {
-                    String baseName = filename;
-                    String extension = "";
-                    int dotIndex = filename.lastIndexOf('.');
-                    if (dotIndex != -1) {
-                        baseName = filename.substring(0, dotIndex);
-                        extension = filename.substring(dotIndex);
+                }
+
+                // Write the body straight into its place in the session's data file
+                long expected = session.chunkLength(chunk);
+                long position = (long) chunk * session.chunkSize;
+                long received = 0;
+                try (InputStream is = exchange.getRequestBody();
+                     FileChannel channel = FileChannel.open(session.dataFile.toPath(), StandardOpenOption.WRITE)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int bytesRead;
+                    while ((bytesRead = is.read(buffer)) != -1) {
+                        if (received + bytesRead > expected) {
+                            sendResponse(exchange, 400, "Chunk " + chunk + " must be " + expected + " bytes");
+                            return;
+                        }
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                        while (data.hasRemaining()) {
+                            channel.write(data, position + received + data.position());
+                        }
+                        received += bytesRead;
                     }
+                }
+                if (received != expected) {
+                    sendResponse(exchange, 400, "Chunk " + chunk + " must be " + expected + " bytes");
+                    return;
+                }
+                session.markReceived(chunk);
+                sendResponse(exchange, 200, "Chunk " + chunk + " received");
+            } finally {
+                session.lock.readLock().unlock();
+            }
+        }
+
+        // Holds the session's write lock throughout, so chunk writes still in progress finish
+        // before the data is hashed and moved, and none start afterwards
+        private void complete(HttpExchange exchange, UploadSession session) throws IOException {
+            session.lock.writeLock().lock();
+            try {
+                if (!sessions.containsKey(session.id)) {
+                    sendResponse(exchange, 404, "No such upload session");
+                    return;
+                }
+                String missing = session.missing();
+                if (!missing.isEmpty()) {
+                    sendResponse(exchange, 409, "Chunks missing: " + missing);
+                    return;
+                }
+                String hash;
+                try (InputStream in = new FileInputStream(session.dataFile)) {
+                    hash = computeSHA256(in);
+                }
+                if (!hash.equals(session.sha256)) {
+                    // Can't tell which chunk is bad, so all of them have to be sent again
+                    session.resetChunks();
+                    sendResponse(exchange, 422, "SHA-256 mismatch; all chunks must be uploaded again");
+                    return;
+                }
+                String reply = storeUpload(session.dataFile, session.filename, hash, session.size, session.replace);
+                session.discard();
+                sendResponse(exchange, 200, reply);
+            } finally {
+                session.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // State of one chunked upload. The data file is preallocated to the full size and chunks are
+    // written at their offsets; numbers of received chunks are appended to a journal next to it,
+    // so sessions survive a server restart.
+    static class UploadSession {
+        final String id;
+        final String filename;
+        final long size;
+        final int chunkSize;
+        final String sha256;
+        final boolean replace;
+        final File dataFile;
+        final File infoFile;
+        final File chunksFile;
+        private final BitSet received = new BitSet();
+        volatile long lastActivity = System.currentTimeMillis();
+        // Chunk writes share the read lock, so they run in parallel; completing or discarding
+        // the session takes the write lock
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private UploadSession(String id, String filename, long size, int chunkSize, String sha256, boolean replace) {
+            this.id = id;
+            this.filename = filename;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.sha256 = sha256;
+            this.replace = replace;
+            this.dataFile = new File(UPLOAD_DIR, SESSION_PREFIX + id + ".data");
+            this.infoFile = new File(UPLOAD_DIR, SESSION_PREFIX + id + ".properties");
+            this.chunksFile = new File(UPLOAD_DIR, SESSION_PREFIX + id + ".chunks");
+        }
+
+        static UploadSession create(String filename, long size, int chunkSize, String sha256, boolean replace) throws IOException {
+            UploadSession session = new UploadSession(UUID.randomUUID().toString(), filename, size, chunkSize, sha256, replace);
+            try (RandomAccessFile data = new RandomAccessFile(session.dataFile, "rw")) {
+                data.setLength(size);
+            }
+            Properties info = new Properties();
+            info.setProperty("filename", filename);
+            info.setProperty("size", String.valueOf(size));
+            info.setProperty("chunkSize", String.valueOf(chunkSize));
+            info.setProperty("sha256", sha256);
+            info.setProperty("replace", String.valueOf(replace));
+            try (Writer writer = Files.newBufferedWriter(session.infoFile.toPath(), StandardCharsets.UTF_8)) {
+                info.store(writer, null);
+            }
+            sessions.put(session.id, session);
+            return session;
+        }
 
-                    int count = 1;
-                    while (uploadedFile.exists()) {
-                        String newName = baseName + "_" + count + extension;
-                        uploadedFile = new File(UPLOAD_DIR, newName);
-                        count++;
+        static void loadAll() {
+            File[] files = UPLOAD_DIR.listFiles((dir, name) -> name.startsWith(SESSION_PREFIX) && name.endsWith(".properties"));
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                String id = name.substring(SESSION_PREFIX.length(), name.length() - ".properties".length());
+                try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    Properties info = new Properties();
+                    info.load(reader);
+                    UploadSession session = new UploadSession(id, info.getProperty("filename"),
+                            Long.parseLong(info.getProperty("size")), Integer.parseInt(info.getProperty("chunkSize")),
+                            info.getProperty("sha256"), Boolean.parseBoolean(info.getProperty("replace")));
+                    if (session.dataFile.length() != session.size) {
+                        session.discard();
+                        continue;
                     }
+                    if (session.chunksFile.exists()) {
+                        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(session.chunksFile)))) {
+                            while (true) {
+                                session.received.set(in.readInt());
+                            }
+                        } catch (EOFException e) {
+                            // end of journal (a torn last entry just means that chunk is sent again)
+                        }
+                    }
+                    session.lastActivity = session.dataFile.lastModified();
+                    sessions.put(id, session);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Dropping unreadable upload session " + id + ": " + e.getMessage());
                 }
+            }
+            if (!sessions.isEmpty()) {
+                System.out.println("Resumable upload sessions: " + sessions.size());
+            }
+        }
 
+        static void expireIdle() {
+            long cutoff = System.currentTimeMillis() - SESSION_EXPIRY_MS;
+            for (UploadSession session : sessions.values()) {
+                if (session.lastActivity < cutoff) {
+                    session.discard();
+                }
             }
+        }
 
-            try (FileOutputStream fos = new FileOutputStream(uploadedFile)) {
-                fos.write(uploadedData);
+        int chunkCount() {
+            return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        }
+
+        long chunkLength(int chunk) {
+            return Math.min(chunkSize, size - (long) chunk * chunkSize);
+        }
+
+        synchronized void markReceived(int chunk) throws IOException {
+            if (received.get(chunk)) {
+                return;
             }
+            received.set(chunk);
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(chunksFile, true))) {
+                out.writeInt(chunk);
+            }
+        }
+
+        synchronized void resetChunks() throws IOException {
+            received.clear();
+            Files.deleteIfExists(chunksFile.toPath());
+        }
+
+        synchronized String missing() {
+            StringBuilder missing = new StringBuilder();
+            for (int chunk = received.nextClearBit(0); chunk < chunkCount(); chunk = received.nextClearBit(chunk + 1)) {
+                if (missing.length() > 0) {
+                    missing.append(',');
+                }
+                missing.append(chunk);
+            }
+            return missing.toString();
+        }
+
+        String status() {
+            return "id " + id + "\nsize " + size + "\nchunkSize " + chunkSize + "\nchunks " + chunkCount()
+                    + "\nmissing " + missing() + "\n";
+        }
+
+        void discard() {
+            lock.writeLock().lock();
+            try {
+                sessions.remove(id);
+                dataFile.delete();
+                chunksFile.delete();
+                infoFile.delete();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
 
-            sendResponse(exchange, 200, "Upload successful: " + uploadedFile.getName());
+    private static File uniqueFile(String filename) {
+        String baseName = filename;
+        String extension = "";
+        int dotIndex = filename.lastIndexOf('.');
+        if (dotIndex != -1) {
+            baseName = filename.substring(0, dotIndex);
+            extension = filename.substring(dotIndex);
         }
+
+        File file = new File(UPLOAD_DIR, filename);
+        int count = 1;
+        while (file.exists()) {
+            file = new File(UPLOAD_DIR, baseName + "_" + count + extension);
+            count++;
+        }
+        return file;
     }
 
+    // Temp uploads, compressed variants and the file index journal live in the upload
+    // directory but aren't served
+    private static boolean isInternalFile(String name) {
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            if (name.startsWith(encoding.prefix)) {
+                return true;
+            }
+        }
+        return name.startsWith(TEMP_PREFIX) || name.startsWith(SESSION_PREFIX) || name.equals(INDEX_FILE);
+    }
+
+    // In-memory metadata for every stored file: size, modification time, SHA-256 and MIME type.
+    // It is kept sorted by name, so /list can page through it without touching the disk, and
+    // indexed by hash, so a duplicate upload is found with a map lookup whatever name the content
+    // was stored under. Each stored file is appended to a journal in the upload directory as
+    // "<hash> <size> <modified> <name>". At startup the journal is replayed, reconciled with the
+    // directory and written back compacted. After that a background pass reconciles it every
+    // RECONCILE_INTERVAL_SECONDS, picking up files added, changed or removed behind the server's back.
+    static class FileIndex {
+        static class Entry {
+            final String name;
+            final String hash;
+            final long size;
+            final long modified;
+            private volatile String mime;
+
+            Entry(String name, String hash, long size, long modified) {
+                this.name = name;
+                this.hash = hash;
+                this.size = size;
+                this.modified = modified;
+            }
+
+            // Probed on first use and then remembered
+            String mime() {
+                if (mime == null) {
+                    mime = probeMime(new File(UPLOAD_DIR, name));
+                }
+                return mime;
+            }
+        }
+
+        private final File journalFile;
+        // Lookups and listing read the skip list directly; changes are made holding the lock
+        private final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<>();
+        private final Map<String, Set<String>> namesByHash = new HashMap<>();
+        private Writer journal;
+
+        FileIndex(File journalFile) {
+            this.journalFile = journalFile;
+        }
+
+        void load() throws IOException {
+            if (journalFile.exists()) {
+                try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split(" ", 4);
+                        if (fields.length < 4) {
+                            continue; // torn last line after a crash
+                        }
+                        try {
+                            put(new Entry(fields[3], fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                        } catch (NumberFormatException e) {
+                            // skip the damaged line; reconcile rehashes the file
+                        }
+                    }
+                }
+            }
+            int hashed = reconcile();
+
+            // Rewrite the journal with just the live entries, then keep appending to it
+            synchronized (this) {
+                File compacted = File.createTempFile(TEMP_PREFIX, ".tmp", UPLOAD_DIR);
+                try (Writer writer = Files.newBufferedWriter(compacted.toPath(), StandardCharsets.UTF_8)) {
+                    for (Entry entry : byName.values()) {
+                        writer.write(line(entry));
+                    }
+                }
+                Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+            }
+            System.out.println("File index: " + byName.size() + " files (" + hashed + " hashed at startup)");
+        }
+
+        // Brings the index in line with the directory: files it doesn't know or that changed are
+        // hashed (without holding the lock), entries for files that are gone are dropped, and so
+        // are compressed variants whose original is gone. Returns how many files were hashed.
+        int reconcile() throws IOException {
+            File[] files = UPLOAD_DIR.listFiles();
+            if (files == null) {
+                throw new IOException("Cannot list " + UPLOAD_DIR);
+            }
+            Set<String> present = new HashSet<>();
+            int hashed = 0;
+            for (File file : files) {
+                String name = file.getName();
+                if (!file.isFile()) {
+                    continue;
+                }
+                if (isInternalFile(name)) {
+                    deleteOrphanedVariant(file);
+                    continue;
+                }
+                present.add(name);
+                Entry entry = byName.get(name);
+                if (entry == null || !matches(entry, file)) {
+                    long size = file.length();
+                    long modified = file.lastModified();
+                    String hash;
+                    try (InputStream in = new FileInputStream(file)) {
+                        hash = computeSHA256(in);
+                    } catch (FileNotFoundException e) {
+                        continue; // deleted meanwhile
+                    }
+                    record(new Entry(name, hash, size, modified));
+                    hashed++;
+                }
+            }
+            synchronized (this) {
+                for (String name : byName.keySet()) {
+                    // Files stored since the directory was listed aren't in present, but exist
+                    if (!present.contains(name) && !new File(UPLOAD_DIR, name).isFile()) {
+                        remove(name);
+                    }
+                }
+            }
+            return hashed;
+        }
+
+        private void deleteOrphanedVariant(File file) {
+            String name = file.getName();
+            for (ContentEncoding encoding : ContentEncoding.values()) {
+                if (name.startsWith(encoding.prefix)
+                        && !new File(UPLOAD_DIR, name.substring(encoding.prefix.length())).isFile() && file.delete()) {
+                    System.out.println("Deleted compressed variant of removed file: " + name);
+                }
+            }
+        }
+
+        // Returns a stored file with this content, or null, preferring the given name when it
+        // holds the content. Entries whose file has been deleted or changed behind the
+        // server's back are dropped on the way.
+        synchronized File find(String hash, long size, String preferredName) {
+            Entry preferred = byName.get(preferredName);
+            File preferredFile = new File(UPLOAD_DIR, preferredName);
+            if (preferred != null && preferred.hash.equals(hash) && matches(preferred, preferredFile)) {
+                return preferredFile;
+            }
+            Set<String> names = namesByHash.get(hash);
+            if (names == null) {
+                return null;
+            }
+            for (String name : new ArrayList<>(names)) {
+                File file = new File(UPLOAD_DIR, name);
+                Entry entry = byName.get(name);
+                if (entry.size == size && matches(entry, file)) {
+                    return file;
+                }
+                remove(name);
+            }
+            return null;
+        }
+
+        int size() {
+            return byName.size();
+        }
+
+        // The indexed hash of this file, or null if it isn't indexed or has changed since
+        String hashOf(File file) {
+            Entry entry = byName.get(file.getName());
+            return entry != null && matches(entry, file) ? entry.hash : null;
+        }
+
+        String mimeOf(File file) {
+            Entry entry = byName.get(file.getName());
+            return entry != null && matches(entry, file) ? entry.mime() : probeMime(file);
+        }
+
+        // Up to limit entries whose names start with prefix, in name order, after the cursor
+        List<Entry> page(String prefix, String after, int limit) {
+            NavigableMap<String, Entry> view = after != null && after.compareTo(prefix) >= 0
+                    ? byName.tailMap(after, false)
+                    : byName.tailMap(prefix, true);
+            List<Entry> page = new ArrayList<>();
+            for (Entry entry : view.values()) {
+                if (page.size() == limit || !entry.name.startsWith(prefix)) {
+                    break;
+                }
+                page.add(entry);
+            }
+            return page;
+        }
+
+        void add(File file, String hash) throws IOException {
+            record(new Entry(file.getName(), hash, file.length(), file.lastModified()));
+        }
+
+        private synchronized void record(Entry entry) throws IOException {
+            remove(entry.name);
+            put(entry);
+            if (journal != null) {
+                journal.write(line(entry));
+                journal.flush();
+            }
+        }
+
+        private synchronized void put(Entry entry) {
+            byName.put(entry.name, entry);
+            namesByHash.computeIfAbsent(entry.hash, h -> new LinkedHashSet<>()).add(entry.name);
+        }
+
+        private synchronized void remove(String name) {
+            Entry entry = byName.remove(name);
+            if (entry != null) {
+                Set<String> names = namesByHash.get(entry.hash);
+                names.remove(name);
+                if (names.isEmpty()) {
+                    namesByHash.remove(entry.hash);
+                }
+            }
+        }
+
+        private static boolean matches(Entry entry, File file) {
+            return file.isFile() && file.length() == entry.size && file.lastModified() == entry.modified;
+        }
+
+        private static String line(Entry entry) {
+            return entry.hash + " " + entry.size + " " + entry.modified + " " + entry.name + "\n";
+        }
+    }
+
+    // GET /list[?prefix=p][&after=cursor][&limit=n][&format=json], answered from the file index
+    // in name order one page at a time. When more files match, the cursor for the next page (the
+    // last name on this one) is sent in an X-Next-Cursor header, and as "next" in JSON.
     static class ListFilesHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -153,21 +1349,47 @@ public class FileServer {
                 return;
             }
 
-            File[] files = UPLOAD_DIR.listFiles();
-            if (files == null) {
-                exchange.sendResponseHeaders(500, -1);
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String prefix = params.getOrDefault("prefix", "");
+            int limit;
+            try {
+                limit = Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_PAGE_SIZE)))));
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Invalid limit");
                 return;
             }
+            List<FileIndex.Entry> page = fileIndex.page(prefix, params.get("after"), limit + 1);
+            String next = null;
+            if (page.size() > limit) {
+                page = page.subList(0, limit);
+                next = page.get(limit - 1).name;
+            }
 
             StringBuilder response = new StringBuilder();
-            for (File file : files) {
-                if (file.isFile()) {
-                    response.append(file.getName()).append(" ("+formatFileSize(file.length())+")").append("\n");
+            if ("json".equals(params.get("format"))) {
+                response.append("{\"files\":[");
+                for (int i = 0; i < page.size(); i++) {
+                    FileIndex.Entry entry = page.get(i);
+                    response.append(i == 0 ? "" : ",")
+                            .append("{\"name\":").append(jsonString(entry.name))
+                            .append(",\"size\":").append(entry.size)
+                            .append(",\"modified\":").append(jsonString(Instant.ofEpochMilli(entry.modified).toString()))
+                            .append(",\"type\":").append(jsonString(entry.mime()))
+                            .append(",\"sha256\":").append(jsonString(entry.hash)).append("}");
                 }
+                response.append("],\"next\":").append(next == null ? "null" : jsonString(next)).append("}\n");
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            } else {
+                for (FileIndex.Entry entry : page) {
+                    response.append(entry.name).append(" ("+formatFileSize(entry.size)+")").append("\n");
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            }
+            if (next != null) {
+                exchange.getResponseHeaders().set("X-Next-Cursor", URLEncoder.encode(next, StandardCharsets.UTF_8));
             }
 
             byte[] responseBytes = response.toString().getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
             exchange.sendResponseHeaders(200, responseBytes.length);
             try (OutputStream os = exchange.getResponseBody()) {
                 os.write(responseBytes);
@@ -177,6 +1399,29 @@ public class FileServer {
 
     // === Utility Methods ===
 
+    private static String probeMime(File file) {
+        try {
+            String mime = Files.probeContentType(file.toPath());
+            return mime != null ? mime : "application/octet-stream";
+        } catch (IOException e) {
+            return "application/octet-stream";
+        }
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
     private static String formatFileSize(long size) {
         if (size < 1024) return size + " bytes";
         else if (size < 1024 * 1024) return String.format("%.2f KB", size / 1024.0);
@@ -215,21 +1460,28 @@ public class FileServer {
     }
 
     private static String computeSHA256(InputStream input) throws IOException {
+        MessageDigest digest = newSha256();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newSha256() throws IOException {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] buffer = new byte[4096];
-            int read;
-            while ((read = input.read(buffer)) != -1) {
-                digest.update(buffer, 0, read);
-            }
-            byte[] hash = digest.digest();
-            StringBuilder hex = new StringBuilder();
-            for (byte b : hash)
-                hex.append(String.format("%02x", b));
-            return hex.toString();
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new IOException("SHA-256 not supported", e);
         }
     }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
 }
 
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Load generator for comparing the server engines: opens <clients> connections at once,
+// each of which lists the files, downloads file <file number> with FILE: and disconnects,
+// and reports throughput and per-download latency for every port given. To compare the
+// thread-per-client engine with the completion-handler one, start both reading from disk:
+// AsyncFileTransferServer has no FileCache, so FileTransferServer must run with its cache
+// disabled (size 0) or it serves from memory and the comparison measures the cache instead.
+//   java FileTransferServer 0 0 22222
+//   java AsyncFileTransferServer 22223
+//   java TransferBenchmark 2000 1 localhost 22222 22223
+// Each port gets one untimed download first, so both runs start with the file in the OS
+// page cache rather than the first paying for a cold read.
+// Usage: java TransferBenchmark <clients> <file number> [host] [port ...]
+public class TransferBenchmark {
+    private static final int DEFAULT_PORT = 22222;
+    // Benchmark threads only block on their socket, so a small stack is plenty
+    private static final long CLIENT_STACK_SIZE = 256 * 1024;
+    private static final int SOCKET_TIMEOUT_MS = 60_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: java TransferBenchmark <clients> <file number> [host] [port ...]");
+            return;
+        }
+        int clients = Integer.parseInt(args[0]);
+        int fileNumber = Integer.parseInt(args[1]);
+        String host = args.length > 2 ? args[2] : "localhost";
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            ports.add(Integer.parseInt(args[i]));
+        }
+        if (ports.isEmpty()) {
+            ports.add(DEFAULT_PORT);
+        }
+
+        List<String> results = new ArrayList<>();
+        for (int port : ports) {
+            results.add(run(clients, fileNumber, host, port));
+        }
+        System.out.println();
+        System.out.println(String.format("%-8s %9s %7s %12s %10s %10s %10s %10s",
+                "port", "completed", "failed", "throughput", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private static String run(int clients, int fileNumber, String host, int port) throws InterruptedException {
+        System.out.println("Running " + clients + " concurrent downloads of file " + fileNumber + " from " + host + ":" + port + "...");
+        try {
+            download(host, port, fileNumber);
+        } catch (IOException e) {
+            System.out.println("Warm-up download failed: " + e);
+        }
+        long[] latenciesNanos = new long[clients];
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            Thread thread = new Thread(null, () -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    long start = System.nanoTime();
+                    bytes.addAndGet(download(host, port, fileNumber));
+                    latenciesNanos[index] = System.nanoTime() - start;
+                    completed.incrementAndGet();
+                } catch (IOException | InterruptedException e) {
+                    latenciesNanos[index] = -1;
+                    if (failed.getAndIncrement() == 0) {
+                        System.out.println("First failure: " + e);
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }, "bench-" + i, CLIENT_STACK_SIZE);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        finished.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] successful = Arrays.stream(latenciesNanos).filter(latency -> latency >= 0).sorted().toArray();
+        return String.format("%-8d %9d %7d %7.1f MB/s %10.1f %10.1f %10.1f %10.1f",
+                port, completed.get(), failed.get(), bytes.get() / (1024.0 * 1024) / seconds,
+                percentileMillis(successful, 0.50), percentileMillis(successful, 0.90),
+                percentileMillis(successful, 0.99), percentileMillis(successful, 1.0));
+    }
+
+    // Speaks the same protocol as Client: LIST_FILES, FILE:<n>, acknowledge, EXIT
+    private static long download(String host, int port, int fileNumber) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            in.readUTF();
+
+            out.writeUTF("LIST_FILES");
+            expect(in.readUTF(), "FILE_LIST");
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                in.readUTF();
+            }
+
+            out.writeUTF("FILE:" + fileNumber);
+            expect(in.readUTF(), "FOUND");
+            long fileSize = in.readLong();
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = fileSize;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Connection closed with " + remaining + " bytes left");
+                }
+                remaining -= read;
+            }
+            out.writeUTF("FILE_RECEIVED");
+            out.writeUTF("EXIT");
+            in.readUTF();
+            return fileSize;
+        }
+    }
+
+    private static void expect(String reply, String expected) throws IOException {
+        if (!reply.equals(expected)) {
+            throw new IOException("Expected " + expected + " but got: " + reply);
+        }
+    }
+
+    private static double percentileMillis(long[] sortedNanos, double q) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(q * sortedNanos.length) - 1);
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+}